@@ -0,0 +1,180 @@
+package com.android.library.cache;
+
+import java.net.URLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Validators and freshness of a disk cache entry, taken from the headers of the response it was downloaded with. A
+ * fresh entry is served as it is, a stale one is revalidated with If-None-Match / If-Modified-Since first.
+ */
+public class CacheMetadata {
+
+    /** Entries without freshness information and without validators never expire, they couldn't be revalidated */
+    public static final CacheMetadata NONE                 = new CacheMetadata(null, null, Long.MAX_VALUE);
+
+    /** Upper bound of the heuristic freshness of responses which only carry validators */
+    private static final long         MAX_HEURISTIC_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** Strong or weak entity tag, null if none */
+    public final String               mEtag;
+
+    /** Last-Modified header, null if none */
+    public final String               mLastModified;
+
+    /** Wall clock time in milliseconds after which the entry is stale */
+    public final long                 mExpires;
+
+    public CacheMetadata(String etag, String lastModified, long expires){
+        mEtag = etag;
+        mLastModified = lastModified;
+        mExpires = expires;
+    }
+
+    /**
+     * @param now wall clock time in milliseconds
+     */
+    public boolean isFresh(long now) {
+        return now < mExpires;
+    }
+
+    public boolean hasValidators() {
+        return null != mEtag || null != mLastModified;
+    }
+
+    /**
+     * Adds the conditional headers of a revalidation to the request.
+     */
+    public void addValidators(URLConnection connection) {
+        if (null != mEtag) {
+            connection.setRequestProperty("If-None-Match", mEtag);
+        }
+        if (null != mLastModified) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    /**
+     * Reads the metadata of a response. A 304 response may leave out the validators, the ones of the revalidated entry
+     * are kept then.
+     *
+     * @param previous metadata of the entry being revalidated, null for a new download
+     * @param now wall clock time in milliseconds the response was received
+     * @param minHeuristic least freshness in milliseconds of a response with validators but without an explicit one
+     */
+    public static CacheMetadata fromResponse(URLConnection connection, CacheMetadata previous, long now,
+                                             long minHeuristic) {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (null != previous) {
+            if (null == etag) {
+                etag = previous.mEtag;
+            }
+            if (null == lastModified) {
+                lastModified = previous.mLastModified;
+            }
+        }
+        final long lifetime = freshnessLifetime(connection, etag, lastModified, now, minHeuristic);
+        if (lifetime < 0) {
+            return NONE;
+        }
+        final long expires = lifetime >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + lifetime;
+        return new CacheMetadata(etag, lastModified, expires);
+    }
+
+    /**
+     * @return milliseconds the response stays fresh, -1 if the response says nothing about it and has no validators
+     */
+    private static long freshnessLifetime(URLConnection connection, String etag, String lastModified, long now,
+                                          long minHeuristic) {
+        final long age = parseSeconds(connection.getHeaderField("Age"), 0) * 1000L;
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (null != cacheControl) {
+            long maxAge = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    maxAge = parseSeconds(directive.substring("max-age=".length()), 0);
+                }
+            }
+            if (maxAge >= 0) {
+                return Math.max(0, maxAge * 1000L - age);
+            }
+        }
+        final long date = parseDate(connection.getHeaderField("Date"), now);
+        final String expires = connection.getHeaderField("Expires");
+        if (null != expires) {
+            // an invalid date means already expired
+            return Math.max(0, parseDate(expires, date) - date - age);
+        }
+        if (null == etag && null == lastModified) {
+            return -1;
+        }
+        // heuristic freshness, RFC 7234 4.2.2: a tenth of the time since the last modification, at least the minimum
+        long heuristic = 0;
+        if (null != lastModified) {
+            final long modified = parseDate(lastModified, date);
+            heuristic = Math.min(MAX_HEURISTIC_MILLIS, Math.max(0, (date - modified) / 10 - age));
+        }
+        return Math.max(minHeuristic, heuristic);
+    }
+
+    private static long parseSeconds(String value, long fallback) {
+        if (null == value) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim().replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static long parseDate(String value, long fallback) {
+        if (null == value) {
+            return fallback;
+        }
+        // not thread safe, so not shared
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            final Date date = format.parse(value.trim());
+            return date.getTime();
+        } catch (ParseException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * @return the metadata as stored in the disk cache, see {@link #parse(String)}
+     */
+    @Override
+    public String toString() {
+        return (null == mEtag ? "" : mEtag) + '\n' + (null == mLastModified ? "" : mLastModified) + '\n' + mExpires;
+    }
+
+    /**
+     * @return the metadata stored by {@link #toString()}, {@link #NONE} if it is missing or unreadable
+     */
+    public static CacheMetadata parse(String value) {
+        if (null == value) {
+            return NONE;
+        }
+        final String[] lines = value.split("\n", -1);
+        if (lines.length < 3) {
+            return NONE;
+        }
+        try {
+            return new CacheMetadata(lines[0].length() == 0 ? null : lines[0],
+                                     lines[1].length() == 0 ? null : lines[1], Long.parseLong(lines[2].trim()));
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -443,6 +444,17 @@ public class DiskLruCache implements Closeable {
         return new Snapshot(key, entry.sequenceNumber, ins);
     }
 
+    /**
+     * Returns true if a readable entry named {@code key} exists. Unlike {@link #get} this opens no file streams and
+     * writes no journal record, so it is cheap enough to be called for every lookup.
+     */
+    public synchronized boolean contains(String key) {
+        checkNotClosed();
+        validateKey(key);
+        Entry entry = lruEntries.get(key);
+        return entry != null && entry.readable;
+    }
+
     /**
      * Returns an editor for the entry named {@code key}, or null if another edit is in progress.
      */
@@ -747,6 +759,82 @@ public class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Same as {@link #newOutputStream(int)}, for a value whose size is known up front. The file is extended to
+         * {@code expectedLength} before writing, so it is allocated at once instead of growing with every write, and
+         * it is truncated to the bytes actually written on close.
+         */
+        public OutputStream newOutputStream(int index, long expectedLength) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                if (expectedLength <= 0) {
+                    return newOutputStream(index);
+                }
+                final RandomAccessFile file = new RandomAccessFile(entry.getDirtyFile(index), "rw");
+                try {
+                    file.setLength(0);
+                    file.setLength(expectedLength);
+                } catch (IOException e) {
+                    closeQuietly(file);
+                    throw e;
+                }
+                return new FaultHidingOutputStream(new PresizedFileOutputStream(file));
+            }
+        }
+
+        /**
+         * Continues the value at {@code index} from a partial file, e.g. an interrupted download. The file is moved
+         * into this edit and the returned stream appends to it. Like {@link #newOutputStream(int, long)}, the file is
+         * extended to {@code expectedLength} before writing and truncated to the written bytes on close.
+         */
+        public OutputStream newOutputStream(int index, File partial, long expectedLength) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                final File dirty = entry.getDirtyFile(index);
+                deleteIfExists(dirty);
+                if (!partial.renameTo(dirty)) {
+                    throw new IOException("failed to move " + partial);
+                }
+                final RandomAccessFile file = new RandomAccessFile(dirty, "rw");
+                try {
+                    final long offset = file.length();
+                    if (expectedLength > offset) {
+                        file.setLength(expectedLength);
+                    }
+                    file.seek(offset);
+                } catch (IOException e) {
+                    closeQuietly(file);
+                    throw e;
+                }
+                return new FaultHidingOutputStream(new PresizedFileOutputStream(file));
+            }
+        }
+
+        /**
+         * Moves the value written at {@code index} so far out of this edit, to be continued later with
+         * {@link #newOutputStream(int, File, long)}. The stream of the value must be closed before, and the edit must
+         * still be aborted afterwards.
+         *
+         * @return false if nothing was written or writing failed
+         */
+        public boolean detach(int index, File destination) {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                final File dirty = entry.getDirtyFile(index);
+                if (hasErrors || !dirty.exists()) {
+                    return false;
+                }
+                destination.delete();
+                return dirty.renameTo(destination);
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -780,6 +868,37 @@ public class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
+        /**
+         * Writes from the start of a pre-sized file, the file is cut to the written length on close.
+         */
+        private class PresizedFileOutputStream extends OutputStream {
+
+            private final RandomAccessFile file;
+
+            private PresizedFileOutputStream(RandomAccessFile file){
+                this.file = file;
+            }
+
+            @Override
+            public void write(int oneByte) throws IOException {
+                file.write(oneByte);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                file.write(buffer, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    file.setLength(file.getFilePointer());
+                } finally {
+                    file.close();
+                }
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
 
             private FaultHidingOutputStream(OutputStream out){
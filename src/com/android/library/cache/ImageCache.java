@@ -24,11 +24,25 @@ public class ImageCache {
 
     private static final int         DISK_CACHE_INDEX = 0;
 
+    /** Value of an entry holding its {@link CacheMetadata} */
+    public static final int          DISK_METADATA_INDEX = 1;
+
+    /** Version 2 added the metadata value, caches of older versions are dropped on open */
+    private static final int         DISK_CACHE_VERSION = 2;
+
+    private static final int         DISK_CACHE_VALUE_COUNT = 2;
+
+    /**
+     * Directory in the disk cache directory for files of downloads in progress, moved into their entry by a rename.
+     * Cleared when the disk cache is opened, files left by a killed process are never taken.
+     */
+    public static final String       TEMP_DIRECTORY   = "tmp";
+
     private ImageCacheParams         mCacheParams;
 
     private LruCache<String, Bitmap> mMemoCache;
 
-    private DiskLruCache             mDiskLruCache;
+    private volatile DiskLruCache    mDiskLruCache;
 
     private final Object             mDiskCacheLock   = new Object();
 
@@ -71,7 +85,9 @@ public class ImageCache {
 
                     if (usableSpace > mCacheParams.mDiskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1, mCacheParams.mDiskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT,
+                                                              mCacheParams.mDiskCacheSize);
+                            clearTempDirectory(diskCacheDir);
                             Log.d(TAG, "Disk cache initialized");
                         } catch (final IOException e) {
                             mCacheParams.mDiskFile = null;
@@ -84,6 +100,18 @@ public class ImageCache {
         }
     }
 
+    private static void clearTempDirectory(File diskCacheDir) {
+        final File tempDir = new File(diskCacheDir, TEMP_DIRECTORY);
+        if (!tempDir.isDirectory()) {
+            return;
+        }
+        try {
+            DiskLruCache.deleteContents(tempDir);
+        } catch (IOException e) {
+            Log.e(TAG, "clearTempDirectory - " + e);
+        }
+    }
+
     public void addBitmapToCache(String data, Bitmap bitmap) {
         if (null == data || null == bitmap) {
             Log.d(TAG, "addBitmapToCache data is null or bitmap is null...");
@@ -104,11 +132,12 @@ public class ImageCache {
                         if (editor != null) {
                             out = editor.newOutputStream(DISK_CACHE_INDEX);
                             bitmap.compress(CompressFormat.JPEG, 100, out);
+                            editor.set(DISK_METADATA_INDEX, CacheMetadata.NONE.toString());
                             editor.commit();
                             out.close();
                         }
                     } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                        snapshot.close();
                     }
                 } catch (final IOException e) {
                     Log.e(TAG, "addBitmapToCache IOException - " + e);
@@ -133,6 +162,24 @@ public class ImageCache {
         return null;
     }
 
+    /**
+     * Adds the bitmap to the memory cache only, for images whose source is already local.
+     */
+    public void addBitmapToMemoCache(String data, Bitmap bitmap) {
+        if (null != mMemoCache && null != data && null != bitmap) {
+            mMemoCache.put(data, bitmap);
+        }
+    }
+
+    /**
+     * Drops the bitmap from the memory cache, the disk cache entry is kept.
+     */
+    public void removeBitmapFromMemoCache(String data) {
+        if (null != mMemoCache && null != data) {
+            mMemoCache.remove(data);
+        }
+    }
+
     public Bitmap getBitmapFromDiskCache(String data) {
         final String key = Utils.hashKeyForDisk(data);
         Bitmap bitmap = null;
@@ -163,6 +210,23 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Checks whether the disk cache holds the data without opening or decoding the entry. The disk cache lock is not
+     * taken, a cache that is closed meanwhile simply reports a miss.
+     */
+    public boolean containsInDiskCache(String data) {
+        final DiskLruCache diskCache = mDiskLruCache;
+        if (diskCache == null || diskCache.isClosed()) {
+            return false;
+        }
+        try {
+            return diskCache.contains(Utils.hashKeyForDisk(data));
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "containsInDiskCache - " + e);
+            return false;
+        }
+    }
+
     // @TargetApi(VERSION_CODES.KITKAT)
     private int getBitmapSize(Bitmap value) {
 
@@ -0,0 +1,168 @@
+package com.android.library.images;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Limit of concurrent downloads driven by their time to first byte, additive increase and multiplicative decrease.
+ * While latency stays close to the lowest one seen recently the limit grows by one per window of that many downloads;
+ * once latency grows beyond it, requests queue up in the network or at the host and the limit is cut.
+ * <p>
+ * Each host has its own baseline, a host that is slow by itself is not taken for congestion of the others.
+ * <p>
+ * Pure bookkeeping, the caller supplies the clock and applies the limit, see {@link #setPoolSize}.
+ */
+class AdaptiveConcurrencyLimiter {
+
+    /** Latency up to this multiple of the baseline counts as not congested */
+    static final double TOLERANCE             = 2.0;
+
+    /** Slack on top of the tolerance, so jitter on very fast networks is not taken for queueing */
+    static final long   LATENCY_SLACK_MS      = 50;
+
+    static final double BACKOFF_RATIO         = 0.75;
+
+    /** Downloads completing right after a cut were started before it, they don't cut again */
+    static final long   DECREASE_INTERVAL_MS  = 1000;
+
+    /**
+     * The baseline is the lowest latency seen. After a window of this many samples it is raised to the lowest one
+     * sampled at the minimum limit, so it follows a slower network but not the queueing a higher limit causes.
+     */
+    static final int    BASELINE_WINDOW       = 100;
+
+    /** Hosts whose baselines are kept, the least recently sampled one is forgotten beyond that */
+    static final int    MAX_HOSTS             = 32;
+
+    private final int   mMinLimit;
+
+    private final int   mMaxLimit;
+
+    private int         mLimit;
+
+    /** Uncongested samples since the limit last changed */
+    private int         mSuccesses;
+
+    private final Map<String, Baseline> mBaselines = new LinkedHashMap<String, Baseline>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Baseline> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    private long        mLastDecrease         = -DECREASE_INTERVAL_MS;
+
+    AdaptiveConcurrencyLimiter(int minLimit, int maxLimit){
+        this(minLimit, maxLimit, maxLimit);
+    }
+
+    /**
+     * @param initialLimit limit before the first sample, between min and max
+     */
+    AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit){
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("limits must be positive and min <= max");
+        }
+        if (initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("initial limit must be between min and max");
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = initialLimit;
+    }
+
+    /**
+     * Applies a limit to a pool whose size is its concurrency: core and maximum size alike, in the order which keeps
+     * the core size at most the maximum.
+     */
+    static void setPoolSize(ThreadPoolExecutor executor, int size) {
+        synchronized (executor) {
+            if (size < executor.getMaximumPoolSize()) {
+                executor.setCorePoolSize(size);
+                executor.setMaximumPoolSize(size);
+            } else {
+                executor.setMaximumPoolSize(size);
+                executor.setCorePoolSize(size);
+            }
+        }
+    }
+
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @param host host the download came from
+     * @param latencyMillis time to first byte of a finished download, from the moment its connection was up
+     * @param now current uptime in milliseconds
+     * @return the new limit
+     */
+    synchronized int onSample(String host, long latencyMillis, long now) {
+        Baseline baseline = mBaselines.get(host);
+        if (null == baseline) {
+            baseline = new Baseline();
+            mBaselines.put(host, baseline);
+        }
+        if (latencyMillis > baseline.update(latencyMillis, mLimit == mMinLimit) * TOLERANCE + LATENCY_SLACK_MS) {
+            decrease(now);
+        } else if (++mSuccesses >= mLimit) {
+            mSuccesses = 0;
+            mLimit = Math.min(mMaxLimit, mLimit + 1);
+        }
+        return mLimit;
+    }
+
+    /**
+     * A download timed out, counted as congestion.
+     *
+     * @return the new limit
+     */
+    synchronized int onTimeout(long now) {
+        decrease(now);
+        return mLimit;
+    }
+
+    /**
+     * Latency of a host without queueing.
+     */
+    private static class Baseline {
+
+        private long mBaseline  = Long.MAX_VALUE;
+
+        /** Lowest latency of the window sampled at the minimum limit */
+        private long mFloorMin  = Long.MAX_VALUE;
+
+        private int  mWindowSamples;
+
+        /**
+         * @param atFloor the limit is at its minimum, the sample holds no queueing the limit could avoid
+         * @return the baseline including the sample
+         */
+        long update(long latencyMillis, boolean atFloor) {
+            if (atFloor) {
+                mFloorMin = Math.min(mFloorMin, latencyMillis);
+            }
+            mBaseline = Math.min(mBaseline, latencyMillis);
+            final long baseline = mBaseline;
+            if (++mWindowSamples >= BASELINE_WINDOW) {
+                if (mFloorMin != Long.MAX_VALUE) {
+                    mBaseline = mFloorMin;
+                }
+                mFloorMin = Long.MAX_VALUE;
+                mWindowSamples = 0;
+            }
+            return baseline;
+        }
+    }
+
+    private void decrease(long now) {
+        if (now - mLastDecrease < DECREASE_INTERVAL_MS) {
+            return;
+        }
+        mLastDecrease = now;
+        mSuccesses = 0;
+        mLimit = Math.max(mMinLimit, (int)(mLimit * BACKOFF_RATIO));
+    }
+}
@@ -0,0 +1,146 @@
+package com.android.library.images;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import com.android.library.images.aware.ImageAware;
+import com.android.library.util.VersionUtils;
+
+/**
+ * Holds a request back until its view is laid out, so the image is decoded at the size the view is shown at rather
+ * than at the maximum decode size. The request is submitted right before the view is drawn the first time; if the
+ * view still has no size then, the maximum decode size of the configuration is used. A view which is never drawn,
+ * e.g. one detached or hidden before its first frame, gets its request at that size once it is detached or after
+ * {@link #LAYOUT_TIMEOUT_MS}.
+ */
+class DeferredLoad implements ViewTreeObserver.OnPreDrawListener, Runnable {
+
+    private static final String     TAG               = "DeferredLoad";
+
+    /** Longest wait for the first draw of the view */
+    static final long               LAYOUT_TIMEOUT_MS = 1000;
+
+    private static final Handler    TIMEOUT_HANDLER   = new Handler(Looper.getMainLooper());
+
+    private final ImageLoaderWorker mWorker;
+
+    private final ImageLoadInfo     mLoadInfo;
+
+    /** Submits on detach, null before API 12 where only the timeout applies */
+    private DetachListener          mDetachListener;
+
+    private boolean                 mSubmitted;
+
+    private DeferredLoad(ImageLoaderWorker worker, ImageLoadInfo info){
+        mWorker = worker;
+        mLoadInfo = info;
+    }
+
+    /**
+     * @return <b>true</b> if the view is not laid out yet and a request for it can wait for the layout; must be called
+     * on the main thread
+     */
+    static boolean needsLayout(ImageAware imageAware) {
+        if (imageAware.getWidth() > 0 && imageAware.getHeight() > 0) {
+            return false;
+        }
+        final View view = imageAware.getWrappedView();
+        if (null == view || (view.getWidth() > 0 && view.getHeight() > 0)) {
+            // laid out already, e.g. wrap_content, a larger size won't come
+            return false;
+        }
+        return view.getViewTreeObserver().isAlive();
+    }
+
+    /**
+     * @return <b>true</b> if the view of the request is not laid out yet and the request was deferred; must be called
+     * on the main thread
+     */
+    static boolean deferIfNeeded(ImageLoaderWorker worker, ImageLoadInfo info) {
+        if (!needsLayout(info.mWrappedView)) {
+            return false;
+        }
+        final View view = info.mWrappedView.getWrappedView();
+        final DeferredLoad load = new DeferredLoad(worker, info);
+        view.getViewTreeObserver().addOnPreDrawListener(load);
+        if (VersionUtils.hasHoneycombMR1()) {
+            load.mDetachListener = new DetachListener(load);
+            view.addOnAttachStateChangeListener(load.mDetachListener);
+        }
+        TIMEOUT_HANDLER.postDelayed(load, LAYOUT_TIMEOUT_MS);
+        Log.d(TAG, "wait for the layout of the view of " + info.mObject);
+        return true;
+    }
+
+    @Override
+    public boolean onPreDraw() {
+        submit();
+        return true;
+    }
+
+    /** The view was not drawn in time */
+    @Override
+    public void run() {
+        if (!mSubmitted) {
+            Log.d(TAG, "view not drawn after " + LAYOUT_TIMEOUT_MS + "ms: " + mLoadInfo.mObject);
+        }
+        submit();
+    }
+
+    private void submit() {
+        final View view = mLoadInfo.mWrappedView.getWrappedView();
+        removeListeners(view);
+        if (mSubmitted) {
+            return;
+        }
+        mSubmitted = true;
+        if (mWorker.isTargetActual(mLoadInfo)) {
+            mWorker.submitLaidOut(mLoadInfo);
+        } else {
+            // rebound or cancelled while waiting, nothing was loaded for it
+            mLoadInfo.markCancelled();
+            mLoadInfo.mCallback.onLoadingCancelled(mLoadInfo.getUrl(), view);
+        }
+    }
+
+    private void removeListeners(View view) {
+        TIMEOUT_HANDLER.removeCallbacks(this);
+        if (null == view) {
+            return;
+        }
+        // the observer the listener was added to is merged into the window's one on attach, ask the view again
+        final ViewTreeObserver observer = view.getViewTreeObserver();
+        if (observer.isAlive()) {
+            observer.removeOnPreDrawListener(this);
+        }
+        if (null != mDetachListener) {
+            view.removeOnAttachStateChangeListener(mDetachListener);
+            mDetachListener = null;
+        }
+    }
+
+    /**
+     * A class of its own, the interface is missing before API 12 and would fail the verification of DeferredLoad.
+     */
+    private static class DetachListener implements View.OnAttachStateChangeListener {
+
+        private final DeferredLoad mLoad;
+
+        DetachListener(DeferredLoad load){
+            mLoad = load;
+        }
+
+        @Override
+        public void onViewAttachedToWindow(View v) {
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            Log.d(TAG, "view detached before it was drawn: " + mLoad.mLoadInfo.mObject);
+            mLoad.submit();
+        }
+    }
+}
@@ -21,6 +21,25 @@ public class DisplayConfiguration {
     public Handler mHandler;
 
     public BitmapDisplayer displayer;
+
+    public Priority mPriority;
+
+    /** Group of the request, see {@link ImageLoader#cancelTag(Object)} */
+    public Object mTag;
+
+    /** Milliseconds the request may take, 0 for the timeout of the loader configuration */
+    public long mTimeout;
+
+    /**
+     * Scheduling priority of a request, requests with a higher priority leave the stage queues first.
+     */
+    public enum Priority {
+        /** The image is on screen right now */
+        IMMEDIATE,
+        NORMAL,
+        /** The image is not visible yet and only loaded ahead of time */
+        PREFETCH
+    }
     
     public DisplayConfiguration(Builder builder){
         this.FailedBitmap = builder.downloadFailedBitmap;
@@ -29,6 +48,9 @@ public class DisplayConfiguration {
         this.mContext = builder.mContext;
         this.mHandler = builder.mHandler;
         this.displayer=createBitmapDisplayer();
+        this.mPriority = builder.mPriority;
+        this.mTag = builder.mTag;
+        this.mTimeout = builder.mTimeout;
     }
 
     public static class Builder {
@@ -43,6 +65,12 @@ public class DisplayConfiguration {
 
         public Handler mHandler;
 
+        public Priority mPriority = Priority.NORMAL;
+
+        public Object mTag;
+
+        public long mTimeout;
+
         public Builder(Context context, Handler handler){
             this.mContext = context;
             this.mHandler = handler;
@@ -73,6 +101,28 @@ public class DisplayConfiguration {
             return this;
         }
 
+        public Builder setPriority(Priority priority) {
+            this.mPriority = priority;
+            return this;
+        }
+
+        /**
+         * @param tag e.g. a screen, a feed section or a user session; compared with equals
+         */
+        public Builder setTag(Object tag) {
+            this.mTag = tag;
+            return this;
+        }
+
+        /**
+         * @param millis time from the request until the image must be loaded, the request fails with
+         *            {@link ImageLoadeRunnable#FAIL_REASON_TIMEOUT} afterwards; 0 for the loader's default
+         */
+        public Builder setTimeout(long millis) {
+            this.mTimeout = millis;
+            return this;
+        }
+
         public DisplayConfiguration builder() {
 
             return new DisplayConfiguration(this);
@@ -86,6 +136,14 @@ public class DisplayConfiguration {
     public BitmapDisplayer getDisplayer(){
         return displayer;
     }
+
+    public Priority getPriority(){
+        return mPriority;
+    }
+
+    public Object getTag(){
+        return mTag;
+    }
     
     /** Creates default implementation of {@link BitmapDisplayer} - {@link SimpleBitmapDisplayer} */
     public static BitmapDisplayer createBitmapDisplayer() {
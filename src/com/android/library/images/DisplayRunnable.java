@@ -25,12 +25,15 @@ public class DisplayRunnable implements Runnable {
 
     private final ImageLoaderWorker    mImageWorker;
 
+    private final ImageLoadInfo        mLoadInfo;
+
     public DisplayRunnable(ImageLoaderWorker worker, ImageLoadInfo info, Bitmap bitmap){
+        mLoadInfo = info;
         mBitmap = bitmap;
         mDisplayConfiguration = info.mDisplayConfig;
         mCallback = info.mCallback;
         mImageWrappedView = info.mWrappedView;
-        mObject = info.mObject;
+        mObject = info.getUrl();
         mImageWorker = worker;
     }
 
@@ -41,20 +44,26 @@ public class DisplayRunnable implements Runnable {
 
         if (mImageWrappedView.isCollected()) {
             Log.d(TAG, "imageView is collected..");
-            mCallback.onLoadingCancelled(mBitmap, mImageWrappedView.getWrappedView());
+            mCallback.onLoadingCancelled(mObject, mImageWrappedView.getWrappedView());
         } else if (isViewWasReused()) {
-            Log.d(TAG, "imageView is reused..");
-            mCallback.onLoadingCancelled(mBitmap, mImageWrappedView.getWrappedView());
+            Log.d(TAG, "imageView is reused or request cancelled..");
+            mCallback.onLoadingCancelled(mObject, mImageWrappedView.getWrappedView());
         } else {
-            mDisplayConfiguration.displayer.display(mBitmap, mImageWrappedView);
+            if (null != mDisplayConfiguration) {
+                mDisplayConfiguration.displayer.display(mBitmap, mImageWrappedView);
+            } else {
+                mImageWrappedView.setImageBitmap(mBitmap);
+            }
             mImageWorker.cancelDisplayTaskFor(mImageWrappedView);
             mCallback.onLoadingComplete(mObject, mImageWrappedView.getWrappedView(), mBitmap);
         }
     }
 
-    /** Checks whether memory cache key (image URI) for current ImageAware is actual */
+    /**
+     * Checks whether memory cache key (image URI) for current ImageAware is actual and the request was not cancelled
+     * meanwhile
+     */
     private boolean isViewWasReused() {
-        String currentCacheKey = mImageWorker.getLoadingUriForView(mImageWrappedView);
-        return !mObject.equals(currentCacheKey);
+        return !mImageWorker.isTargetActual(mLoadInfo);
     }
 }
@@ -0,0 +1,411 @@
+package com.android.library.images;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.library.cache.CacheMetadata;
+import com.android.library.cache.DiskLruCache;
+import com.android.library.util.ByteArrayPool;
+
+/**
+ * Downloads an image from its url or one of its mirrors, whichever completes first. The next url is started when no
+ * attempt produced its first bytes within the hedge delay, or right away when every running attempt failed. Each
+ * attempt downloads into a temporary file, the first complete one is moved into the cache entry and the others are
+ * disconnected. The progress of the attempt furthest ahead is published, see {@link #onProgress(long, long)}.
+ * <p>
+ * The url itself uses the connection slot the task holds for its host. A mirror takes a slot of its own host, and is
+ * skipped if that host is at its limit.
+ */
+class HedgedDownload {
+
+    private static final String     TAG            = "HedgedDownload";
+
+    private final ImageLoaderWorker mWorker;
+
+    private final Executor          mExecutor;
+
+    private final List<String>      mUrls;
+
+    private final File              mDirectory;
+
+    private final long              mHedgeDelay;
+
+    private final long              mDeadline;
+
+    private final int               mConnectTimeout;
+
+    private final int               mReadTimeout;
+
+    private final int               mTargetWidth;
+
+    private final int               mTargetHeight;
+
+    private final long              mHeuristicFreshness;
+
+    private final List<Attempt>     mAttempts      = new ArrayList<Attempt>();
+
+    /** Index of the next url to try, urls before it were started or skipped */
+    private int                     mNext;
+
+    private Attempt                 mWinner;
+
+    private int                     mFailed;
+
+    private long                    mLastStart;
+
+    private boolean                 mCancelled;
+
+    /** The winner was taken or the download gave up, no attempt can win anymore */
+    private boolean                 mClosed;
+
+    private boolean                 mTimedOut;
+
+    /** Size of the image written to the output */
+    private long                    mLoadedBytes;
+
+    /** Attempt whose progress is published, the one with the most bytes */
+    private Attempt                 mLeader;
+
+    private long                    mLeaderBytes;
+
+    /**
+     * @param urls the canonical url first, then its mirrors
+     * @param directory where the attempts write their temporary files, a directory in the disk cache directory so
+     *            they are moved into their entry by a rename; created if it is missing
+     * @param deadline uptime after which the download fails, Long.MAX_VALUE for none
+     * @param targetWidth width of the views waiting for the image, sent as client hint; 0 if unknown
+     * @param heuristicFreshness see {@link ImageLoaderConfiguration#mHeuristicFreshness}
+     */
+    HedgedDownload(ImageLoaderWorker worker, Executor executor, List<String> urls, File directory, long hedgeDelay,
+                   long deadline, int connectTimeout, int readTimeout, int targetWidth, int targetHeight,
+                   long heuristicFreshness){
+        mWorker = worker;
+        mExecutor = executor;
+        mUrls = urls;
+        mDirectory = directory;
+        mHedgeDelay = hedgeDelay;
+        mDeadline = deadline;
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mHeuristicFreshness = heuristicFreshness;
+    }
+
+    /**
+     * Blocks until an attempt completed, all failed, the deadline passed or the download was cancelled.
+     *
+     * @return <b>true</b> if the image was written to the entry of the editor, its stream is closed either way
+     */
+    boolean download(DiskLruCache.Editor editor, int index) throws IOException {
+        final Attempt winner;
+        try {
+            winner = awaitWinner();
+        } finally {
+            synchronized (this) {
+                // attempts finishing from now on delete their files
+                mClosed = true;
+            }
+            cancelLosers();
+        }
+        if (null == winner) {
+            return false;
+        }
+        Log.d(TAG, "won by " + winner.mUrl);
+        final long length = winner.mFile.length();
+        try {
+            // the file is renamed into the entry, not copied
+            editor.newOutputStream(index, winner.mFile, length).close();
+            mLoadedBytes = length;
+            return true;
+        } finally {
+            // only left if the move failed
+            winner.mFile.delete();
+        }
+    }
+
+    void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+            notifyAll();
+        }
+        cancelLosers();
+    }
+
+    long getLoadedBytes() {
+        return mLoadedBytes;
+    }
+
+    /**
+     * @return metadata of the response which won, {@link CacheMetadata#NONE} if none did
+     */
+    synchronized CacheMetadata getMetadata() {
+        return null == mWinner ? CacheMetadata.NONE : mWinner.mMetadata;
+    }
+
+    /**
+     * Progress of the attempt furthest ahead, called on the thread of the attempt.
+     *
+     * @param totalBytes size of the image, -1 if unknown
+     */
+    protected void onProgress(long totalBytes, long loadedBytes) {
+    }
+
+    synchronized boolean isTimedOut() {
+        return mTimedOut;
+    }
+
+    private synchronized Attempt awaitWinner() throws IOException {
+        startNext();
+        while (true) {
+            if (null != mWinner) {
+                return mWinner;
+            }
+            if (mCancelled) {
+                return null;
+            }
+            final boolean more = mNext < mUrls.size();
+            if (mFailed == mAttempts.size()) {
+                // every running attempt failed, fail over to the next mirror right away
+                if (!more || !startNext()) {
+                    return null;
+                }
+                continue;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (now >= mDeadline) {
+                mTimedOut = true;
+                return null;
+            }
+            long wait = mDeadline - now;
+            if (more && !hasFirstBytes()) {
+                final long hedgeAt = mLastStart + mHedgeDelay;
+                if (now >= hedgeAt) {
+                    Log.d(TAG, "no first bytes after " + mHedgeDelay + "ms, hedging");
+                    startNext();
+                    continue;
+                }
+                wait = Math.min(wait, hedgeAt - now);
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Starts the next url whose host has a free connection slot.
+     *
+     * @return <b>false</b> if every remaining url was skipped
+     */
+    private boolean startNext() throws IOException {
+        while (mNext < mUrls.size()) {
+            final String url = mUrls.get(mNext);
+            // the task already holds the slot for the host of the url itself
+            final String host = mNext == 0 ? null : HostSlots.hostOf(url);
+            mNext++;
+            if (null != host && !mWorker.getDownloader().tryAcquire(host)) {
+                Log.d(TAG, host + " at its limit, mirror skipped: " + url);
+                continue;
+            }
+            final Attempt attempt;
+            try {
+                // the disk cache may have been cleared meanwhile
+                mDirectory.mkdirs();
+                attempt = new Attempt(url, host, File.createTempFile("hedge", ".tmp", mDirectory));
+                mAttempts.add(attempt);
+                mLastStart = SystemClock.uptimeMillis();
+                mExecutor.execute(attempt);
+            } catch (IOException e) {
+                if (null != host) {
+                    mWorker.releaseHost(host);
+                }
+                throw e;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean hasFirstBytes() {
+        for (Attempt attempt : mAttempts) {
+            if (attempt.mFirstBytes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void cancelLosers() {
+        final List<Attempt> attempts;
+        final Attempt winner;
+        synchronized (this) {
+            attempts = new ArrayList<Attempt>(mAttempts);
+            winner = mWinner;
+        }
+        for (Attempt attempt : attempts) {
+            if (attempt != winner) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    private synchronized void onFirstBytes(Attempt attempt) {
+        attempt.mFirstBytes = true;
+        notifyAll();
+    }
+
+    private void onAttemptProgress(Attempt attempt, long totalBytes, long loadedBytes) {
+        synchronized (this) {
+            if (mClosed || mCancelled || (attempt != mLeader && loadedBytes <= mLeaderBytes)) {
+                return;
+            }
+            mLeader = attempt;
+            mLeaderBytes = loadedBytes;
+        }
+        onProgress(totalBytes, loadedBytes);
+    }
+
+    /**
+     * @return <b>true</b> if the attempt won, its file must be kept then
+     */
+    private synchronized boolean onFinished(Attempt attempt, boolean success) {
+        if (success && null == mWinner && !mCancelled && !mClosed) {
+            mWinner = attempt;
+            notifyAll();
+            return true;
+        }
+        if (!success) {
+            mFailed++;
+            notifyAll();
+        }
+        return false;
+    }
+
+    private class Attempt implements Runnable {
+
+        final String                       mUrl;
+
+        /** Host whose connection slot the attempt holds, null if it uses the slot of the task */
+        final String                       mHost;
+
+        final File                         mFile;
+
+        /** Guarded by the enclosing download */
+        boolean                            mFirstBytes;
+
+        /** Read from the response before it is declared the winner */
+        CacheMetadata                      mMetadata;
+
+        private volatile boolean           mAttemptCancelled;
+
+        private volatile HttpURLConnection mConnection;
+
+        Attempt(String url, String host, File file){
+            mUrl = url;
+            mHost = host;
+            mFile = file;
+        }
+
+        void cancel() {
+            mAttemptCancelled = true;
+            final HttpURLConnection connection = mConnection;
+            if (null != connection) {
+                mWorker.disconnectAsync(connection);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean success = false;
+            HttpURLConnection connection = null;
+            InputStream in = null;
+            OutputStream out = null;
+            final ByteArrayPool pool = ByteArrayPool.get();
+            final byte[] buffer = pool.acquire();
+            try {
+                connection = mWorker.getDownloader().open(mUrl, mConnectTimeout, mReadTimeout, mTargetWidth,
+                                                          mTargetHeight);
+                mConnection = connection;
+                if (mAttemptCancelled) {
+                    return;
+                }
+                connection.connect();
+                final long requested = SystemClock.uptimeMillis();
+                in = connection.getInputStream();
+                mWorker.onNetworkLatency(mUrl, SystemClock.uptimeMillis() - requested);
+                mMetadata = CacheMetadata.fromResponse(connection, null, System.currentTimeMillis(),
+                                                       mHeuristicFreshness);
+                onFirstBytes(this);
+
+                final int contentLength = connection.getContentLength();
+                final long progressStep = contentLength > 0
+                                          ? Math.max(ByteArrayPool.BUFFER_SIZE,
+                                                     contentLength / ImageLoadeRunnable.PROGRESS_STEPS)
+                                          : ImageLoadeRunnable.PROGRESS_STEP_UNKNOWN_SIZE;
+                long nextProgress = progressStep;
+                long loaded = 0;
+                out = new FileOutputStream(mFile);
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (mAttemptCancelled) {
+                        return;
+                    }
+                    out.write(buffer, 0, n);
+                    loaded += n;
+                    if (loaded >= nextProgress) {
+                        nextProgress = loaded + progressStep;
+                        onAttemptProgress(this, contentLength, loaded);
+                    }
+                }
+                if (contentLength >= 0 && loaded != contentLength) {
+                    Log.e(TAG, "truncated " + mUrl + ", " + loaded + " of " + contentLength + " bytes");
+                    return;
+                }
+                success = true;
+            } catch (SocketTimeoutException e) {
+                Log.e(TAG, "timeout downloading " + mUrl + " - " + e);
+                mWorker.onNetworkTimeout();
+            } catch (IOException e) {
+                Log.e(TAG, "error downloading " + mUrl + " - " + e);
+            } finally {
+                pool.release(buffer);
+                mConnection = null;
+                // the connection of a complete download stays alive for reuse
+                if (null != connection && !success) {
+                    connection.disconnect();
+                }
+                try {
+                    if (null != out) {
+                        out.close();
+                    }
+                    if (null != in) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    success = false;
+                }
+                if (!onFinished(this, success)) {
+                    mFile.delete();
+                }
+                if (null != mHost) {
+                    mWorker.releaseHost(mHost);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.android.library.images;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Connection slots of each host, with the line of tasks waiting for one. Hosts are told apart by host and port, see
+ * {@link #hostOf(String)}. Pure bookkeeping, the caller runs the tasks it is handed.
+ *
+ * @param <T> task waiting for a slot
+ */
+class HostSlots<T> {
+
+    private final int               mMaxPerHost;
+
+    /** Guarded by itself */
+    private final Map<String, Host<T>> mHosts = new HashMap<String, Host<T>>();
+
+    private static class Host<T> {
+
+        int                 mActive;
+
+        final LinkedList<T> mWaiting = new LinkedList<T>();
+    }
+
+    HostSlots(int maxPerHost){
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("connections per host must be positive");
+        }
+        mMaxPerHost = maxPerHost;
+    }
+
+    /**
+     * @return host and port of the url, the url itself if it can't be parsed
+     */
+    static String hostOf(String url) {
+        try {
+            final URL u = new URL(url);
+            return u.getAuthority() == null ? url : u.getAuthority().toLowerCase();
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    /**
+     * @return <b>true</b> if the task left the line without being removed, it is skipped when a slot is handed on
+     */
+    protected boolean isCancelled(T task) {
+        return false;
+    }
+
+    /**
+     * Takes a slot of the host, or queues the task in the host's line.
+     *
+     * @param resumed the task waited in the line before and goes ahead of tasks which did not
+     * @return <b>false</b> if the host is at its limit, the task was queued
+     */
+    boolean tryAcquire(String host, T task, boolean resumed) {
+        synchronized (mHosts) {
+            final Host<T> h = hostFor(host);
+            // tasks already waiting for the host go first
+            if (h.mActive < mMaxPerHost && (resumed || h.mWaiting.isEmpty())) {
+                h.mActive++;
+                return true;
+            }
+            if (resumed) {
+                h.mWaiting.addFirst(task);
+            } else {
+                h.mWaiting.addLast(task);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Takes a slot of the host if one is free and no task waits for it, never queues.
+     *
+     * @return <b>false</b> if the host is at its limit
+     */
+    boolean tryAcquire(String host) {
+        synchronized (mHosts) {
+            final Host<T> h = hostFor(host);
+            if (h.mActive < mMaxPerHost && h.mWaiting.isEmpty()) {
+                h.mActive++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private Host<T> hostFor(String host) {
+        Host<T> h = mHosts.get(host);
+        if (null == h) {
+            h = new Host<T>();
+            mHosts.put(host, h);
+        }
+        return h;
+    }
+
+    /**
+     * Gives a slot of the host back.
+     *
+     * @return the task which waited longest for the host, to be run again; null if there is none
+     */
+    T release(String host) {
+        synchronized (mHosts) {
+            final Host<T> h = mHosts.get(host);
+            if (null == h) {
+                return null;
+            }
+            h.mActive--;
+            T next = h.mWaiting.poll();
+            while (null != next && isCancelled(next)) {
+                next = h.mWaiting.poll();
+            }
+            if (h.mActive <= 0 && h.mWaiting.isEmpty()) {
+                mHosts.remove(host);
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Removes a task from the line of its host.
+     */
+    void remove(T task) {
+        synchronized (mHosts) {
+            for (Host<T> h : mHosts.values()) {
+                if (h.mWaiting.remove(task)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return tasks waiting for the host
+     */
+    int waiting(String host) {
+        synchronized (mHosts) {
+            final Host<T> h = mHosts.get(host);
+            return null == h ? 0 : h.mWaiting.size();
+        }
+    }
+
+    void clear() {
+        synchronized (mHosts) {
+            mHosts.clear();
+        }
+    }
+}
@@ -104,7 +104,7 @@ public class ImageDecodeRunnable implements Runnable {
 
             @Override
             public void run() {
-                callback.onLoadingCancelled(mImageUrl, mImageWrappedView.getWrappedView());
+                callback.onLoadingCancelled(mLoadInfo.getUrl(), mImageWrappedView.getWrappedView());
             }
         };
         runTask(r, mHandler);
@@ -173,12 +173,24 @@ public class ImageDecodeRunnable implements Runnable {
      * greater than the requested width and height
      */
     public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight) {
+        return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, new BitmapFactory.Options());
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmapFromDescriptor(FileDescriptor, int, int)}, the caller keeps the options to
+     * abort the decode through {@link BitmapFactory.Options#requestCancelDecode()}.
+     */
+    public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor, int reqWidth, int reqHeight,
+                                                           BitmapFactory.Options options) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
 
+        if (options.mCancel) {
+            return null;
+        }
+
         // Calculate inSampleSize
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
 
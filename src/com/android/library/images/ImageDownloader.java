@@ -0,0 +1,116 @@
+package com.android.library.images;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.android.library.Constants;
+
+/**
+ * Connection policy of the network stage. Downloads to one host are limited, so a slow host can't hold every network
+ * thread: a task finding its host at the limit gives its thread up and waits in the host's line, it is dispatched again
+ * when a download from that host finishes. Connections of successful downloads are closed without disconnecting, so
+ * HttpURLConnection keeps them alive for the next image from the same host.
+ * <p>
+ * Requests advertise WebP where the platform decodes it, carry client hints of the target size and the headers of the
+ * configuration, and are handed to its {@link com.android.library.inf.IRequestCustomizer} last.
+ */
+class ImageDownloader {
+
+    private static final String     TAG     = "ImageDownloader";
+
+    /** Lossless and transparent WebP images decode from Android 4.2.1 on */
+    private static final String     ACCEPT  = Build.VERSION.SDK_INT >= 17 ? "image/webp,image/*;q=0.8" : "image/*";
+
+    private final ImageLoaderConfiguration mConfiguration;
+
+    /** Connection slots of the hosts, a cancelled task waiting for one is skipped */
+    private final HostSlots<ImageLoadeRunnable> mSlots;
+
+    ImageDownloader(ImageLoaderConfiguration configuration){
+        mConfiguration = configuration;
+        mSlots = new HostSlots<ImageLoadeRunnable>(configuration.mMaxConnectionsPerHost) {
+
+            @Override
+            protected boolean isCancelled(ImageLoadeRunnable task) {
+                return task.isCancelled();
+            }
+        };
+    }
+
+    /**
+     * Takes a connection slot of the host, or queues the task in the host's line.
+     *
+     * @param resumed the task waited in the line before and goes ahead of tasks which did not
+     * @return <b>false</b> if the host is at its limit, the task was queued and must give its thread up
+     */
+    boolean tryAcquire(String host, ImageLoadeRunnable task, boolean resumed) {
+        if (mSlots.tryAcquire(host, task, resumed)) {
+            return true;
+        }
+        Log.d(TAG, host + " at its limit, " + mSlots.waiting(host) + " waiting");
+        return false;
+    }
+
+    /**
+     * Takes a connection slot of the host if one is free and no task waits for it, never queues.
+     *
+     * @return <b>false</b> if the host is at its limit
+     */
+    boolean tryAcquire(String host) {
+        return mSlots.tryAcquire(host);
+    }
+
+    /**
+     * Gives a connection slot of the host back.
+     *
+     * @return the next task waiting for the host, to be dispatched again; null if there is none
+     */
+    ImageLoadeRunnable release(String host) {
+        return mSlots.release(host);
+    }
+
+    /**
+     * Removes a cancelled task from the line of its host.
+     */
+    void remove(ImageLoadeRunnable task) {
+        mSlots.remove(task);
+    }
+
+    void clear() {
+        mSlots.clear();
+    }
+
+    /**
+     * Opens the request of an image with the headers of the configuration, it is sent once its response is read.
+     *
+     * @param targetWidth width of the views waiting for the image in pixels, 0 if unknown
+     * @param targetHeight height of the views waiting for the image in pixels, 0 if unknown
+     */
+    HttpURLConnection open(String url, int connectTimeout, int readTimeout, int targetWidth,
+                           int targetHeight) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("User-Agent", Constants.USER_AGENT);
+        connection.setRequestProperty("Accept", ACCEPT);
+        if (mConfiguration.mClientHints) {
+            connection.setRequestProperty("DPR", Float.toString(mConfiguration.mDensity));
+            // the bucket the image is cached under, see ImageLoaderWorker#keyFor
+            connection.setRequestProperty("Width",
+                                          Integer.toString(ImageLoaderWorker.bucket(targetWidth,
+                                                                                    mConfiguration.mMaxDecodeWidth)));
+        }
+        for (Map.Entry<String, String> header : mConfiguration.mRequestHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (null != mConfiguration.mRequestCustomizer) {
+            mConfiguration.mRequestCustomizer.customizeRequest(connection, url, targetWidth, targetHeight);
+        }
+        return connection;
+    }
+}
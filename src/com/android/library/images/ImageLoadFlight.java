@@ -0,0 +1,267 @@
+package com.android.library.images;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.android.library.images.DisplayConfiguration.Priority;
+
+/**
+ * One in-flight fetch and decode for an image url. Every {@link ImageLoadInfo} that asks for the same url while the
+ * flight is running is attached to it, and the loaded bitmap is fanned out to all attached targets.
+ */
+public class ImageLoadFlight {
+
+    private final String              mKey;
+
+    private final ImageLoadeRunnable  mTask;
+
+    private final List<ImageLoadInfo> mTargets = new ArrayList<ImageLoadInfo>();
+
+    private boolean                   mFinished;
+
+    private long                      mLoadedBytes;
+
+    public ImageLoadFlight(String key, ImageLoadeRunnable task){
+        mKey = key;
+        mTask = task;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    public ImageLoadeRunnable getTask() {
+        return mTask;
+    }
+
+    /**
+     * @return <b>false</b> if every attached target only needs the image in the disk cache, the decode is skipped then
+     */
+    synchronized boolean needsBitmap() {
+        for (ImageLoadInfo info : mTargets) {
+            if (!info.mDiskCacheOnly) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void setLoadedBytes(long loadedBytes) {
+        mLoadedBytes = loadedBytes;
+    }
+
+    /** @return bytes this flight downloaded, 0 if the image came from a cache */
+    synchronized long getLoadedBytes() {
+        return mLoadedBytes;
+    }
+
+    /**
+     * @return the highest priority among targets which still wait for this flight, null if there is none
+     */
+    synchronized Priority getPriority(ImageLoaderWorker worker) {
+        Priority priority = null;
+        for (ImageLoadInfo info : mTargets) {
+            if (worker.isTargetActual(info)) {
+                Priority p = ImageLoaderWorker.priorityOf(info);
+                if (null == priority || p.ordinal() < priority.ordinal()) {
+                    priority = p;
+                }
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * @return the latest deadline among attached targets, the flight keeps running as long as one of them waits
+     */
+    synchronized long getDeadline() {
+        if (mTargets.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long deadline = Long.MIN_VALUE;
+        for (ImageLoadInfo info : mTargets) {
+            deadline = Math.max(deadline, info.mDeadline);
+        }
+        return deadline;
+    }
+
+    /**
+     * Detaches targets whose deadline passed.
+     *
+     * @return the detached targets, they should be notified about the failure
+     */
+    synchronized List<ImageLoadInfo> expireTargets(long now) {
+        List<ImageLoadInfo> expired = null;
+        for (Iterator<ImageLoadInfo> i = mTargets.iterator(); i.hasNext();) {
+            ImageLoadInfo info = i.next();
+            if (info.mDeadline <= now) {
+                i.remove();
+                info.markDone();
+                if (null == expired) {
+                    expired = new ArrayList<ImageLoadInfo>();
+                }
+                expired.add(info);
+            }
+        }
+        return null == expired ? Collections.<ImageLoadInfo> emptyList() : expired;
+    }
+
+    /**
+     * @return decode width and height covering every attached target; a target of unknown size counts as the maximum
+     * decode size of the configuration, which also caps the result
+     */
+    synchronized int[] getTargetSize(ImageLoaderConfiguration config) {
+        int width = 0;
+        int height = 0;
+        for (ImageLoadInfo info : mTargets) {
+            final int w = info.mWrappedView.getWidth();
+            final int h = info.mWrappedView.getHeight();
+            width = Math.max(width, w > 0 ? w : config.mMaxDecodeWidth);
+            height = Math.max(height, h > 0 ? h : config.mMaxDecodeHeight);
+        }
+        if (width <= 0 || height <= 0) {
+            return new int[] { config.mMaxDecodeWidth, config.mMaxDecodeHeight };
+        }
+        return new int[] { Math.min(width, config.mMaxDecodeWidth), Math.min(height, config.mMaxDecodeHeight) };
+    }
+
+    /**
+     * @return the largest width and height of the targets which are laid out, 0 where none is
+     */
+    synchronized int[] getKnownTargetSize() {
+        int width = 0;
+        int height = 0;
+        for (ImageLoadInfo info : mTargets) {
+            width = Math.max(width, info.mWrappedView.getWidth());
+            height = Math.max(height, info.mWrappedView.getHeight());
+        }
+        return new int[] { width, height };
+    }
+
+    /**
+     * @return <b>true</b> if every target still waiting for this flight belongs to a paused scope or tag
+     */
+    synchronized boolean isScopePaused(ImageLoaderWorker worker) {
+        boolean paused = false;
+        for (ImageLoadInfo info : mTargets) {
+            if (!worker.isTargetActual(info)) {
+                continue;
+            }
+            if (!info.isPaused()) {
+                return false;
+            }
+            paused = true;
+        }
+        return paused;
+    }
+
+    /**
+     * @return <b>false</b> if this flight was already finished and can't take any more targets
+     */
+    synchronized boolean attach(ImageLoadInfo info) {
+        if (mFinished) {
+            return false;
+        }
+        mTargets.add(info);
+        info.setFlight(this);
+        return true;
+    }
+
+    /**
+     * @return snapshot of the targets still waiting for the image
+     */
+    synchronized List<ImageLoadInfo> getTargets() {
+        return new ArrayList<ImageLoadInfo>(mTargets);
+    }
+
+    /**
+     * Detaches a single target whose request was cancelled.
+     *
+     * @return <b>false</b> if the target was not attached anymore
+     */
+    synchronized boolean detach(ImageLoadInfo info) {
+        return mTargets.remove(info);
+    }
+
+    /**
+     * Detaches targets whose view was collected or reused for another url.
+     *
+     * @return the detached targets, they should be notified about cancellation
+     */
+    synchronized List<ImageLoadInfo> pruneTargets(ImageLoaderWorker worker) {
+        List<ImageLoadInfo> pruned = null;
+        for (Iterator<ImageLoadInfo> i = mTargets.iterator(); i.hasNext();) {
+            ImageLoadInfo info = i.next();
+            if (!worker.isTargetActual(info)) {
+                i.remove();
+                info.markCancelled();
+                if (null == pruned) {
+                    pruned = new ArrayList<ImageLoadInfo>();
+                }
+                pruned.add(info);
+            }
+        }
+        return null == pruned ? Collections.<ImageLoadInfo> emptyList() : pruned;
+    }
+
+    /**
+     * Finishes this flight if no target is attached anymore, so the shared fetch can be dropped.
+     *
+     * @return <b>true</b> if the flight was finished by this call
+     */
+    synchronized boolean finishIfIdle() {
+        if (!mFinished && mTargets.isEmpty()) {
+            mFinished = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Detaches the targets which only need the image in the disk cache, and finishes this flight if no other target
+     * remains.
+     *
+     * @return the detached targets
+     */
+    synchronized List<ImageLoadInfo> finishDiskOnlyTargets() {
+        List<ImageLoadInfo> done = null;
+        for (Iterator<ImageLoadInfo> i = mTargets.iterator(); i.hasNext();) {
+            ImageLoadInfo info = i.next();
+            if (info.mDiskCacheOnly) {
+                i.remove();
+                info.markDone();
+                if (null == done) {
+                    done = new ArrayList<ImageLoadInfo>();
+                }
+                done.add(info);
+            }
+        }
+        if (mTargets.isEmpty()) {
+            mFinished = true;
+        }
+        return null == done ? Collections.<ImageLoadInfo> emptyList() : done;
+    }
+
+    /**
+     * Finishes this flight and hands over all attached targets. Later calls return an empty list, so every target is
+     * notified only once.
+     */
+    synchronized List<ImageLoadInfo> finish() {
+        mFinished = true;
+        if (mTargets.isEmpty()) {
+            return Collections.<ImageLoadInfo> emptyList();
+        }
+        List<ImageLoadInfo> targets = new ArrayList<ImageLoadInfo>(mTargets);
+        mTargets.clear();
+        for (ImageLoadInfo info : targets) {
+            info.markDone();
+        }
+        return targets;
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+}
@@ -0,0 +1,138 @@
+package com.android.library.images;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.graphics.Bitmap;
+import android.view.View;
+
+import com.android.library.inf.IImageLoadCallback;
+
+/**
+ * Result of {@link ImageLoader#loadBitmap}. The load goes through the same caches, flights and stage executors as
+ * display requests, {@link #get()} blocks until the bitmap is decoded.
+ */
+public class ImageLoadFuture implements Future<Bitmap>, ImageLoadHandle {
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+
+    private ImageLoadInfo        mLoadInfo;
+
+    private Bitmap               mBitmap;
+
+    private String               mFailReason;
+
+    private boolean              mCancelled;
+
+    ImageLoadFuture(){
+    }
+
+    /** Future of a bitmap that was already in the memory cache */
+    ImageLoadFuture(Bitmap bitmap){
+        mBitmap = bitmap;
+        mLatch.countDown();
+    }
+
+    void setLoadInfo(ImageLoadInfo info) {
+        mLoadInfo = info;
+    }
+
+    IImageLoadCallback getCallback() {
+        return mCallback;
+    }
+
+    @Override
+    public void cancel() {
+        cancel(true);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        if (null != mLoadInfo) {
+            mLoadInfo.cancel();
+        }
+        finish(null, null, true);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mLatch.getCount() == 0;
+    }
+
+    @Override
+    public Bitmap get() throws InterruptedException, ExecutionException {
+        mLatch.await();
+        return getResult();
+    }
+
+    @Override
+    public Bitmap get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized Bitmap getResult() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (null != mFailReason) {
+            throw new ExecutionException(new IOException(mFailReason));
+        }
+        return mBitmap;
+    }
+
+    private void finish(Bitmap bitmap, String failReason, boolean cancelled) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            mBitmap = bitmap;
+            mFailReason = failReason;
+            mCancelled = cancelled;
+        }
+        mLatch.countDown();
+    }
+
+    private final IImageLoadCallback mCallback = new IImageLoadCallback() {
+
+                                                   @Override
+                                                   public void onLoadingStarted(Object data, View view) {
+                                                   }
+
+                                                   @Override
+                                                   public void onLoadingFailed(Object data, View view, String reason) {
+                                                       finish(null, reason, false);
+                                                   }
+
+                                                   @Override
+                                                   public void onLoadingComplete(Object data, View view,
+                                                                                 Bitmap loadedBitmap) {
+                                                       finish(loadedBitmap, null, false);
+                                                   }
+
+                                                   @Override
+                                                   public void onLoadingCancelled(Object data, View view) {
+                                                       finish(null, null, true);
+                                                   }
+
+                                                   @Override
+                                                   public void publishProgress(int totalSize, int progress) {
+                                                   }
+                                               };
+}
@@ -0,0 +1,15 @@
+package com.android.library.images;
+
+/**
+ * Handle of one image request. Cancelling it detaches the request from its load; queued work, the download and the
+ * decode are dropped as soon as no other request waits for the same image.
+ */
+public interface ImageLoadHandle {
+
+    void cancel();
+
+    boolean isCancelled();
+
+    /** @return <b>true</b> once the request completed, failed or was cancelled */
+    boolean isDone();
+}
@@ -1,26 +1,109 @@
 package com.android.library.images;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.SystemClock;
 
 import com.android.library.images.aware.ImageAware;
 import com.android.library.inf.IImageLoadCallback;
 
-public class ImageLoadInfo {
+public class ImageLoadInfo implements ImageLoadHandle {
 
     public ImageAware         mWrappedView;
     public String                   mObject;
+    /** Url given by the caller, mObject is the variant of it which is fetched */
+    public String                   mRequestedUrl;
+    /** Url the image is loaded from if mObject is only its key, see {@link ImageLoaderWorker#keyFor(String, int)} */
+    public String                   mSource;
     public DisplayConfiguration     mDisplayConfig;
     public IImageLoadCallback       mCallback;
     public ImageLoaderConfiguration mLoaderConfiguration;
-    public ReentrantLock loadFromUriLock;
+    public Handler                  mHandler;
+    /** Only the disk cache has to be filled, the request needs no bitmap */
+    public boolean                  mDiskCacheOnly;
+    /** Scope the request belongs to, null if it was made on the loader directly */
+    public ImageRequestScope        mScope;
+    /** Requests of the same tag, see {@link ImageLoader#cancelTag(Object)} */
+    public ImageRequestScope        mTagScope;
+    /** Alternates of mObject, tried when it is slow or fails; the image is still cached under mObject */
+    public List<String>             mMirrors;
+    /** Uptime in milliseconds after which the request fails, Long.MAX_VALUE if it has no deadline */
+    public long                     mDeadline;
+
+    private static final int        STATE_LOADING   = 0;
+    private static final int        STATE_DONE      = 1;
+    private static final int        STATE_CANCELLED = 2;
+
+    private final ImageLoaderWorker mWorker;
+    private volatile ImageLoadFlight mFlight;
+    private int                     mState          = STATE_LOADING;
     
-    public ImageLoadInfo(ImageLoaderConfiguration loaderConfiguration,ImageAware wrappedView, String object,
-                         DisplayConfiguration displayConfiguration, ReentrantLock lock,IImageLoadCallback callback){
+    public ImageLoadInfo(ImageLoaderWorker worker, ImageLoaderConfiguration loaderConfiguration,ImageAware wrappedView,
+                         String object, DisplayConfiguration displayConfiguration,
+                         IImageLoadCallback callback, Handler handler){
+        mWorker = worker;
         mLoaderConfiguration=loaderConfiguration;
         mWrappedView = wrappedView;
         mObject =object;
+        mRequestedUrl = object;
         mDisplayConfig = displayConfiguration;
         mCallback = callback;
-        loadFromUriLock=lock;
+        mHandler = handler;
+        long timeout = loaderConfiguration.mRequestTimeout;
+        if (null != displayConfiguration && displayConfiguration.mTimeout > 0) {
+            timeout = displayConfiguration.mTimeout;
+        }
+        mDeadline = timeout > 0 ? SystemClock.uptimeMillis() + timeout : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return url the image is loaded from, the one reported to the callback
+     */
+    public String getUrl() {
+        return null != mSource ? mSource : mObject;
+    }
+
+    @Override
+    public void cancel() {
+        mWorker.cancel(this);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_LOADING;
+    }
+
+    /** @return <b>false</b> if the request already finished */
+    synchronized boolean markCancelled() {
+        if (mState != STATE_LOADING) {
+            return false;
+        }
+        mState = STATE_CANCELLED;
+        return true;
+    }
+
+    synchronized void markDone() {
+        if (mState == STATE_LOADING) {
+            mState = STATE_DONE;
+        }
+    }
+
+    /** @return <b>true</b> if the scope or the tag of this request is paused */
+    boolean isPaused() {
+        return (null != mScope && mScope.isPaused()) || (null != mTagScope && mTagScope.isPaused());
+    }
+
+    void setFlight(ImageLoadFlight flight) {
+        mFlight = flight;
+    }
+
+    ImageLoadFlight getFlight() {
+        return mFlight;
     }
 }
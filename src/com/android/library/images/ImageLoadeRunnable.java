@@ -1,34 +1,55 @@
 package com.android.library.images;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.library.cache.CacheMetadata;
 import com.android.library.cache.DiskLruCache;
-import com.android.library.images.aware.ImageAware;
-import com.android.library.inf.IImageLoadCallback;
+import com.android.library.cache.ImageCache;
+import com.android.library.images.DisplayConfiguration.Priority;
+import com.android.library.inf.IUriLoader;
+import com.android.library.util.ByteArrayPool;
+import com.android.library.util.TeeInputStream;
 import com.android.library.util.Utils;
 
 public class ImageLoadeRunnable implements Runnable {
 
     private static final String            TAG              = "ImageLoadeRunnable";
 
-    private static final int               IO_BUFFER_SIZE   = 8 * 1024;
+    /** Progress is published about this many times per download of a known size */
+    static final int                       PROGRESS_STEPS   = 20;
+
+    static final int                       PROGRESS_STEP_UNKNOWN_SIZE = 64 * 1024;
+
+    /** Bytes an image header may take, the header is read again after its bounds were decoded */
+    private static final int               DECODE_MARK_LIMIT = 64 * 1024;
+
+    /** Buffers of decodes while downloading, as large as the mark so the stream never grows them */
+    private static final ByteArrayPool     DECODE_BUFFERS    = new ByteArrayPool(DECODE_MARK_LIMIT, 2);
 
     private static final int               DISK_CACHE_INDEX = 0;
 
+    private static final int               HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /** Failure reason of requests whose deadline passed or whose download stalled */
+    public static final String             FAIL_REASON_TIMEOUT = "timeout";
+
     private final String                   imageUrl;
 
     private final ImageLoadInfo            mLoadInfo;
@@ -39,9 +60,62 @@ public class ImageLoadeRunnable implements Runnable {
 
     private final ImageLoaderConfiguration mLoaderConfig;
 
-    private final ImageAware               wrappedView;
+    /** Loader of a local uri, decoded in place without the disk cache; null if the url is downloaded */
+    private final IUriLoader               mUriLoader;
+
+    /** Url the image is loaded from, imageUrl is only its key for a data: uri or with client hints */
+    private final String                   mSource;
+
+    private ImageLoadFlight                mFlight;
+
+    static final int                       STAGE_DISK       = 0;
+
+    static final int                       STAGE_NETWORK    = 1;
+
+    static final int                       STAGE_DECODE     = 2;
+
+    private volatile int                   mStage           = STAGE_DISK;
+
+    private volatile Priority              mPriority        = Priority.NORMAL;
+
+    private volatile long                  mSequence;
+
+    /** Priority and sequence taken at the next dispatch, see {@link #requestPriority}; null if none is pending */
+    private Priority                       mPendingPriority;
+
+    private long                           mPendingSequence;
+
+    private volatile boolean               mCancelled;
+
+    /** Connection of the running download, disconnected on cancel to abort the read loop */
+    private volatile HttpURLConnection     mConnection;
+
+    /** Running download across mirrors, cancelled together with the task */
+    private volatile HedgedDownload        mHedgedDownload;
+
+    /** Options of the running decode, used to abort it on cancel */
+    private volatile BitmapFactory.Options mDecodeOptions;
+
+    /** The task waited in the line of its host, it goes ahead of new tasks for that host */
+    private boolean                        mWaitedForHost;
+
+    /** The last download failed because it ran past the deadline or stalled */
+    private boolean                        mTimedOut;
 
-    private final IImageLoadCallback       mListener;
+    /** The image was decoded while it was downloaded and is already displayed, the flight is finished */
+    private boolean                        mDisplayed;
+
+    /** A stale disk cache entry was replaced by the image downloaded for its revalidation */
+    private boolean                        mReplacedStale;
+
+    /** The network stage ran, a stale entry found by the decode stage afterwards is served as it is */
+    private boolean                        mLoadedFromNetwork;
+
+    /** The decode stage found a stale entry which is revalidated before it is decoded */
+    private boolean                        mRevalidateFirst;
+
+    /** The decode stage serves a stale entry while it is revalidated, the bitmap is displayed but not cached */
+    private boolean                        mServedStale;
 
     public ImageLoadeRunnable(ImageLoaderWorker worker, ImageLoadInfo info, Handler handler){
         mWorker = worker;
@@ -49,176 +123,464 @@ public class ImageLoadeRunnable implements Runnable {
         imageUrl = info.mObject;
         mLoadInfo = info;
         mLoaderConfig = mLoadInfo.mLoaderConfiguration;
-        wrappedView = mLoadInfo.mWrappedView;
-        mListener = info.mCallback;
+        mSource = info.getUrl();
+        mUriLoader = worker.uriLoaderFor(mSource);
     }
 
     @Override
     public void run() {
 
-        if (waitIfPaused()) return;
+        // paused while queued, the task is parked without holding this thread
+        if (mWorker.parkIfPaused(this)) return;
+
+        try {
 
-        ReentrantLock loadFromUriLock = mLoadInfo.loadFromUriLock;
+            checkTaskNotActual();
+            checkDeadline();
+
+            switch (mStage) {
+                case STAGE_DISK:
+                    runDiskStage();
+                    break;
+                case STAGE_NETWORK:
+                    runNetworkStage();
+                    break;
+                case STAGE_DECODE:
+                    runDecodeStage();
+                    break;
+            }
+        } catch (TaskCancelledException e) {
+            fireCancelEvent();
+        }
+    }
 
-        loadFromUriLock.lock();
+    /**
+     * Looks the url up in the memory and disk cache and routes the task to the decode stage on a disk hit, to the
+     * network stage otherwise. Local uris skip the disk cache and go straight to the decode stage. Freshness is left
+     * to the decode stage, a request which only needs the image on disk is served by a stale entry.
+     */
+    private void runDiskStage() throws TaskCancelledException {
+        final Bitmap bitmap = mLoaderConfig.mImageCache.getBitmapFromMemoCache(imageUrl);
+        if (null != bitmap && !bitmap.isRecycled()) {
+            display(bitmap);
+            return;
+        }
+        if (null != mUriLoader) {
+            checkTaskNotActual();
 
-        Bitmap bitmap;
+            if (!completeDiskOnlyTargets()) {
+                moveToStage(STAGE_DECODE);
+            }
+            return;
+        }
+        // freshness is checked by the decode stage, which opens the entry anyway
+        final boolean cached = mLoaderConfig.mImageCache.containsInDiskCache(imageUrl);
+
+        checkTaskNotActual();
+
+        if (cached && completeDiskOnlyTargets()) {
+            return;
+        }
+        moveToStage(cached ? STAGE_DECODE : STAGE_NETWORK);
+    }
+
+    /**
+     * Downloads the url into the disk cache and hands the task over to the decode stage. The task gives its thread up
+     * while its host is at the connection limit, it is dispatched again once a download from the host finished.
+     */
+    private void runNetworkStage() throws TaskCancelledException {
+        final String host = HostSlots.hostOf(mSource);
+
+        if (!mWorker.getDownloader().tryAcquire(host, this, mWaitedForHost)) {
+            mWaitedForHost = true;
+            return;
+        }
+        mWaitedForHost = false;
+        mLoadedFromNetwork = true;
+
+        boolean cached = false;
 
         try {
+            final ImageLoaderWorker.UriLock lock = mWorker.lockUri(imageUrl);
+            try {
+                cached = loadBitmapFromNetWork();
+            } finally {
+                mWorker.unlockUri(imageUrl, lock);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "loadBitmapFromNetWork IOException- " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "loadBitmapFromNetWork IllegalStateException- " + e);
+        } finally {
+            // the body was drained and closed, the connection is free for the next download from the host
+            mWorker.releaseHost(host);
+        }
 
-            checkTaskNotActual();
+        if (mDisplayed) {
+            // the requests were served while the rest of the image was written to the disk cache
+            return;
+        }
 
-            bitmap = mLoaderConfig.mImageCache.getBitmapFromMemoCache(imageUrl);
+        if (!cached) {
+            // fails the requests whose deadline passed as timed out, the others with the reason of the download
+            checkDeadline();
+            fireFailEvent(mTimedOut ? FAIL_REASON_TIMEOUT : "loadBitmFromNetWork error");
+            return;
+        }
 
-            if (null == bitmap || bitmap.isRecycled()) {
+        checkTaskNotActual();
+        checkTaskInterrupted();
 
-                bitmap = tryLoadBitmap();
+        if (!completeDiskOnlyTargets()) {
+            moveToStage(STAGE_DECODE);
+        }
+    }
 
-                if (null == bitmap) {// listener callback already was fired
-                    return;
-                }
+    /**
+     * Decodes the disk cache entry, or the local uri, at the target size and hands the bitmap over to the main thread.
+     */
+    private void runDecodeStage() throws TaskCancelledException {
+        Bitmap bitmap = null;
+        try {
+            bitmap = null != mUriLoader ? decodeFromUriLoader() : decodeBitmapFromDiskCache();
 
-                checkTaskNotActual();
-                checkTaskInterrupted();
+            if (mRevalidateFirst) {
+                mRevalidateFirst = false;
+                moveToStage(STAGE_NETWORK);
+                return;
+            }
 
-                mLoaderConfig.mImageCache.addBitmapToCache(imageUrl, bitmap);
+            if (bitmap == null || bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0) {
+                fireFailEvent("decode error");
+                return;
             }
 
             checkTaskNotActual();
             checkTaskInterrupted();
 
-        } catch (TaskCancelledException e) {
-            fireCancelEvent();
+            if (null != mUriLoader) {
+                // the source is local already, a copy in the disk cache would only take space
+                mLoaderConfig.mImageCache.addBitmapToMemoCache(imageUrl, bitmap);
+            } else if (mServedStale) {
+                // the revalidation may have evicted the url already, putting the stale bitmap back would outlive it
+                Log.d(TAG, "stale bitmap not cached: " + imageUrl);
+            } else {
+                mLoaderConfig.mImageCache.addBitmapToCache(imageUrl, bitmap);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "decodeBitmapFromDiskCache IOException- " + e);
+            fireFailEvent("decodeBitmapFromDiskCache IOException");
+            return;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "decodeBitmapFromDiskCache IllegalStateException- " + e);
+            fireFailEvent("decodeBitmapFromDiskCache IllegalStateException");
+            return;
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "decodeBitmapFromDiskCache  OutOfMemoryError- " + e);
+            fireFailEvent("out of memory");
             return;
-        } finally {
-            loadFromUriLock.unlock();
         }
         display(bitmap);
     }
 
-    private void display(Bitmap bitmap) {
-        DisplayRunnable task = new DisplayRunnable(mWorker, mLoadInfo, bitmap);
-        runTask(task, mHandler);
+    private void moveToStage(int stage) {
+        mStage = stage;
+        mWorker.dispatch(this);
     }
 
-    private Bitmap tryLoadBitmap() throws TaskCancelledException {
-        Bitmap bitmap = null;
-        try {
-            checkTaskNotActual();
-            // load from diskcache
-            bitmap = mLoaderConfig.mImageCache.getBitmapFromDiskCache(imageUrl);
+    int getStage() {
+        return mStage;
+    }
 
-            if (bitmap == null || bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0) {
+    /**
+     * Must not be called while the task sits in a stage queue, the queue orders by these values.
+     */
+    void setPriority(Priority priority, long sequence) {
+        mPriority = priority;
+        mSequence = sequence;
+    }
 
-                checkTaskNotActual();
+    /**
+     * Asks for a new priority. The task may be on its way into a stage queue which orders by it, the priority is only
+     * taken by {@link #applyPendingPriority()} while the task is in no queue.
+     *
+     * @return <b>false</b> if the task has or will get these values already
+     */
+    synchronized boolean requestPriority(Priority priority, long sequence) {
+        if (null == mPendingPriority ? priority == mPriority && sequence == mSequence
+                                     : priority == mPendingPriority && sequence == mPendingSequence) {
+            return false;
+        }
+        mPendingPriority = priority;
+        mPendingSequence = sequence;
+        return true;
+    }
 
-                bitmap = loadBitmapFromNetWork();
+    /**
+     * Takes the requested priority, only called while the task is in no stage queue.
+     */
+    synchronized void applyPendingPriority() {
+        if (null != mPendingPriority) {
+            setPriority(mPendingPriority, mPendingSequence);
+            mPendingPriority = null;
+        }
+    }
 
-                if (bitmap == null || bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0) {
-                    fireFailEvent("loadBitmFromNetWork error");
-                }
+    Priority getPriority() {
+        return mPriority;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Cancels the shared load: a running download is disconnected in the background, which aborts its disk cache
+     * edit, and a running decode is asked to stop. The worker removes the task from its stage queue.
+     */
+    void cancel() {
+        mCancelled = true;
+        final HttpURLConnection connection = mConnection;
+        if (null != connection) {
+            mWorker.disconnectAsync(connection);
+        }
+        final HedgedDownload hedgedDownload = mHedgedDownload;
+        if (null != hedgedDownload) {
+            hedgedDownload.cancel();
+        }
+        final BitmapFactory.Options options = mDecodeOptions;
+        if (null != options) {
+            options.requestCancelDecode();
+        }
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Revalidates the stale disk cache entry of the url while it is displayed, no request waits for this task. If the
+     * image changed, the old one is dropped from the memory cache so the next request decodes the new one.
+     */
+    void revalidate() {
+        final ImageLoaderWorker.UriLock lock = mWorker.lockUri(imageUrl);
+        try {
+            if (loadBitmapFromNetWork() && mReplacedStale) {
+                // the new entry is committed, so no decode stage caches the old bitmap after this; the ones serving
+                // the stale entry don't cache it at all
+                mLoaderConfig.mImageCache.removeBitmapFromMemoCache(imageUrl);
             }
-            checkTaskNotActual();
-            checkTaskInterrupted();
+        } catch (IOException e) {
+            Log.e(TAG, "revalidate IOException- " + e);
         } catch (IllegalStateException e) {
-            Log.d(TAG, "network error --" + e);
-            fireFailEvent("network error");
-        } catch (TaskCancelledException e) {
-            throw e;
-        } catch (OutOfMemoryError e) {
-            Log.d(TAG, "out of memory --" + e);
-            fireFailEvent("out of memory");
-        } catch (Throwable e) {
-            Log.d(TAG, "unknow --" + e);
-            fireFailEvent("unknow");
+            Log.e(TAG, "revalidate IllegalStateException- " + e);
+        } finally {
+            mWorker.unlockUri(imageUrl, lock);
+        }
+    }
+
+    /**
+     * Called by the worker when the stage queue overflowed and this task was dropped from it.
+     */
+    void onDiscarded() {
+        Log.d(TAG, "task discarded from a full stage queue: " + imageUrl);
+        fireCancelEvent(mWorker.finishFlight(mFlight));
+    }
+
+    private void display(Bitmap bitmap) {
+        for (ImageLoadInfo target : mWorker.finishFlight(mFlight)) {
+            DisplayRunnable task = new DisplayRunnable(mWorker, target, bitmap);
+            runTask(task, handlerFor(target));
+        }
+    }
+
+    /**
+     * Completes targets which only asked for the image to be in the disk cache. A target attaching meanwhile either
+     * is completed with them or keeps the flight running.
+     *
+     * @return <b>true</b> if the flight is finished, <b>false</b> if targets needing the bitmap remain
+     */
+    private boolean completeDiskOnlyTargets() {
+        for (final ImageLoadInfo target : mWorker.finishDiskOnlyTargets(mFlight)) {
+            Runnable r = new Runnable() {
+
+                @Override
+                public void run() {
+                    target.mCallback.onLoadingComplete(mSource, target.mWrappedView.getWrappedView(), null);
+                }
+            };
+            runTask(r, handlerFor(target));
         }
-        return bitmap;
+        return mFlight.isFinished();
+    }
+
+    private Handler handlerFor(ImageLoadInfo target) {
+        return null != target.mHandler ? target.mHandler : mHandler;
     }
 
-    private Bitmap loadBitmapFromNetWork() {
+    /**
+     * Downloads the url into the disk cache unless it is already there and fresh. A stale entry is revalidated, it is
+     * still served if the revalidation fails.
+     *
+     * @return <b>true</b> if the disk cache holds the image afterwards
+     */
+    private boolean loadBitmapFromNetWork() throws IOException {
 
         final String key = Utils.hashKeyForDisk(imageUrl);
-        InputStream inputStream = null;
-        DiskLruCache.Snapshot snapshot;
         DiskLruCache diskCache = mLoaderConfig.mImageCache.getDiskCache();
 
-        Bitmap bitmap = null;
+        if (diskCache == null) {
+            return false;
+        }
+        DiskLruCache.Snapshot snapshot = diskCache.get(key);
+        CacheMetadata stale = null;
+        if (snapshot != null) {
+            final CacheMetadata metadata = CacheMetadata.parse(snapshot.getString(ImageCache.DISK_METADATA_INDEX));
+            snapshot.close();
+            if (metadata.isFresh(System.currentTimeMillis())) {
+                return true;
+            }
+            stale = metadata;
+            snapshot = null;
+        }
+        Log.d(TAG, null == stale ? "loadBitmapFromNetWork, not found in  cache, downloading..."
+                                 : "loadBitmapFromNetWork, stale in cache, revalidating...");
+        DiskLruCache.Editor editor = diskCache.edit(key);
+        if (editor != null) {
+            final boolean downloaded;
+            if (hasMirrors()) {
+                downloaded = downloadHedged(diskCache, editor);
+            } else {
+                final boolean decode = mLoaderConfig.mDecodeWhileDownloading && null != mFlight
+                                       && mFlight.needsBitmap();
+                final PartialDownload partial = new PartialDownload(diskCache.getDirectory(), key);
+                downloaded = download(mSource, editor, partial, stale, null, decode);
+            }
+            if (downloaded) {
+                editor.commit();
+            } else {
+                editor.abort();
+            }
+        }
+        snapshot = diskCache.get(key);
+        if (snapshot != null) {
+            snapshot.close();
+            return true;
+        }
+        return false;
+    }
 
-        if (diskCache != null) {
-            try {
-                snapshot = diskCache.get(key);
-                if (snapshot == null) {
-                    Log.d(TAG, "loadBitmapFromNetWork, not found in  cache, downloading...");
-                    DiskLruCache.Editor editor = diskCache.edit(key);
-                    if (editor != null) {
-                        if (downloadUrlToStream(imageUrl, editor.newOutputStream(DISK_CACHE_INDEX))) {
-                            editor.commit();
-                        } else {
-                            editor.abort();
-                        }
-                    }
-                    snapshot = diskCache.get(key);
-                }
-                if (snapshot != null) {
-                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+    private Bitmap decodeFromUriLoader() throws IOException {
+        final int[] targetSize = mFlight.getTargetSize(mLoaderConfig);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        mDecodeOptions = options;
+        try {
+            if (mCancelled) {
+                return null;
+            }
+            return mUriLoader.decode(mLoaderConfig.mContext, mSource, targetSize[0], targetSize[1], options);
+        } catch (RuntimeException e) {
+            // a missing resource, a denied provider or a broken custom loader fails the flight like a missing file
+            final IOException failure = new IOException("uri loader failed: " + e);
+            failure.initCause(e);
+            throw failure;
+        } finally {
+            mDecodeOptions = null;
+        }
+    }
+
+    private Bitmap decodeBitmapFromDiskCache() throws IOException {
+
+        final String key = Utils.hashKeyForDisk(imageUrl);
+        DiskLruCache diskCache = mLoaderConfig.mImageCache.getDiskCache();
+
+        if (diskCache == null) {
+            return null;
+        }
+        final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            final CacheMetadata metadata = CacheMetadata.parse(snapshot.getString(ImageCache.DISK_METADATA_INDEX));
+            if (!mLoadedFromNetwork && !metadata.isFresh(System.currentTimeMillis())) {
+                if (!mLoaderConfig.mServeStaleWhileRevalidate) {
+                    // the network stage revalidates the entry before it is decoded
+                    mRevalidateFirst = true;
+                    return null;
                 }
-                final int targetW = wrappedView.getWidth();
-                final int targetH = wrappedView.getHeight();
+                mServedStale = true;
+                mWorker.revalidate(this);
+            }
 
-                if (inputStream != null) {
-                    bitmap = decodeSampledBitmapFromDescriptor(inputStream, targetW, targetH);
+            final int[] targetSize = mFlight.getTargetSize(mLoaderConfig);
+            final int targetW = targetSize[0];
+            final int targetH = targetSize[1];
+
+            InputStream inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+            if (inputStream instanceof FileInputStream) {
+                // the descriptor keeps its position, so bounds and pixels can both be decoded from it
+                FileDescriptor fileDescriptor = ((FileInputStream)inputStream).getFD();
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                mDecodeOptions = options;
+                if (mCancelled) {
+                    return null;
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "processBitmap IOException- " + e);
-                fireFailEvent("loadBitmapFromNetWork IOException");
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "processBitmap IllegalStateException- " + e);
-                fireFailEvent("loadBitmapFromNetWork IllegalStateException");
-            } catch (OutOfMemoryError e) {
-                Log.e(TAG, "processBitmap  OutOfMemoryError- " + e);
-                fireFailEvent("loadBitmapFromNetWork OutOfMemoryError");
-            } catch (Throwable e) {
-                Log.e(TAG, "processBitmap  Throwable- " + e);
-                fireFailEvent("unknow");
-            }
-        }
-        if (null != inputStream) {
-            try {
-                inputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                return ImageDecodeRunnable.decodeSampledBitmapFromDescriptor(fileDescriptor, targetW, targetH,
+                                                                             options);
             }
+            return decodeSampledBitmapFromDescriptor(inputStream, targetW, targetH);
+        } finally {
+            mDecodeOptions = null;
+            snapshot.close();
         }
-        return bitmap;
     }
 
     private void fireCancelEvent() {
+        List<ImageLoadInfo> targets = mWorker.finishFlight(mFlight);
         if (isTaskInterrupted()) return;
-        Runnable r = new Runnable() {
+        fireCancelEvent(targets);
+    }
 
-            @Override
-            public void run() {
-                mListener.onLoadingCancelled(imageUrl, wrappedView.getWrappedView());
-            }
-        };
-        runTask(r, mHandler);
+    void fireCancelEvent(List<ImageLoadInfo> targets) {
+        for (final ImageLoadInfo target : targets) {
+            Runnable r = new Runnable() {
+
+                @Override
+                public void run() {
+                    target.mCallback.onLoadingCancelled(mSource, target.mWrappedView.getWrappedView());
+                }
+            };
+            runTask(r, handlerFor(target));
+        }
     }
 
     private void fireFailEvent(final String reason) {
+        List<ImageLoadInfo> targets = mWorker.finishFlight(mFlight);
         if (isTaskInterrupted()) return;
-        Runnable r = new Runnable() {
+        fireFailEvent(targets, reason);
+    }
 
-            @Override
-            public void run() {
-                mListener.onLoadingFailed(imageUrl, wrappedView.getWrappedView(), reason);
-            }
-        };
-        runTask(r, mHandler);
+    private void fireFailEvent(List<ImageLoadInfo> targets, final String reason) {
+        for (final ImageLoadInfo target : targets) {
+            Runnable r = new Runnable() {
 
+                @Override
+                public void run() {
+                    target.mCallback.onLoadingFailed(mSource, target.mWrappedView.getWrappedView(), reason);
+                }
+            };
+            runTask(r, handlerFor(target));
+        }
     }
 
+    /** Posts to the handler, requests without one are notified on the calling thread */
     static void runTask(Runnable r, Handler handler) {
-        handler.post(r);
+        if (null == handler) {
+            r.run();
+        } else {
+            handler.post(r);
+        }
     }
 
     public ImageLoadInfo getLoadInfo() {
@@ -229,27 +591,49 @@ public class ImageLoadeRunnable implements Runnable {
         return imageUrl;
     }
 
+    void setFlight(ImageLoadFlight flight) {
+        mFlight = flight;
+    }
+
+    public ImageLoadFlight getFlight() {
+        return mFlight;
+    }
+
     /**
-     * @throws TaskCancelledException if task is not actual (target ImageAware is collected by GC or the image URI of
-     * this task doesn't match to image URI which is actual for current ImageAware at this moment)
+     * @throws TaskCancelledException if task is not actual (it was cancelled, or every ImageAware attached to the
+     * flight is collected by GC or was reused for another image URI at this moment)
      */
     private void checkTaskNotActual() throws TaskCancelledException {
-        checkViewCollected();
-        checkViewReused();
+        if (mCancelled || isTaskNotActual()) {
+            throw new TaskCancelledException();
+        }
     }
 
-    /** @throws TaskCancelledException if target ImageAware is collected */
-    private void checkViewCollected() throws TaskCancelledException {
-        if (isViewCollected()) {
+    /**
+     * Fails the requests whose deadline passed.
+     *
+     * @throws TaskCancelledException if no request is left, the flight is finished then
+     */
+    private void checkDeadline() throws TaskCancelledException {
+        final List<ImageLoadInfo> expired = mFlight.expireTargets(SystemClock.uptimeMillis());
+        if (expired.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, expired.size() + " requests timed out: " + imageUrl);
+        fireFailEvent(expired, FAIL_REASON_TIMEOUT);
+        if (mWorker.finishFlightIfIdle(mFlight)) {
             throw new TaskCancelledException();
         }
     }
 
-    /** @throws TaskCancelledException if target ImageAware is collected by GC */
-    private void checkViewReused() throws TaskCancelledException {
-        if (isViewReused()) {
-            throw new TaskCancelledException();
+    /**
+     * @return the configured timeout, shortened to the time left until the deadline of the flight
+     */
+    private static int timeoutFor(int configured, long remaining) {
+        if (remaining >= configured) {
+            return configured;
         }
+        return (int)Math.max(1, remaining);
     }
 
     /** @throws TaskCancelledException if current task was interrupted */
@@ -267,26 +651,13 @@ public class ImageLoadeRunnable implements Runnable {
         return false;
     }
 
+    /**
+     * Detaches collected and reused views from the flight and notifies them. The task is not actual anymore once no
+     * view is left, the flight is finished then so later requests for the url start a new fetch.
+     */
     private boolean isTaskNotActual() {
-        return isViewCollected() || isViewReused();
-    }
-
-    private boolean isViewCollected() {
-        if (wrappedView.isCollected()) {
-            return true;
-        }
-        return false;
-    }
-
-    private boolean isViewReused() {
-        String currentCacheKey = mWorker.getLoadingUriForView(wrappedView);
-        // Check whether memory cache key (image URI) for current ImageAware is actual.
-        // If ImageAware is reused for another task then current task should be cancelled.
-        boolean imageAwareWasReused = !imageUrl.equals(currentCacheKey);
-        if (imageAwareWasReused) {
-            return true;
-        }
-        return false;
+        fireCancelEvent(mFlight.pruneTargets(mWorker));
+        return mWorker.finishFlightIfIdle(mFlight);
     }
 
     /**
@@ -296,27 +667,134 @@ public class ImageLoadeRunnable implements Runnable {
      * @return true if successful, false otherwise
      */
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
+        return download(urlString, null, null, null, outputStream, false);
+    }
+
+    /**
+     * Copies the response body in bulk through a pooled buffer, checking cancellation and the deadline after every
+     * chunk and publishing the progress to the waiting requests.
+     *
+     * @param editor the body is written to its entry if not null, the cache file is sized by the Content-Length of
+     *            the response; else it is written to outputStream
+     * @param partial bytes of an interrupted attempt, the download continues with a Range request if there are any
+     *            and keeps what it got if it fails again; null to always download the whole image
+     * @param stale metadata of the stale entry being revalidated, a 304 response only refreshes it; null if the disk
+     *            cache doesn't hold the url
+     * @param decode decode the image from the body while it is written, see {@link #decodeWhileDownloading}
+     */
+    private boolean download(String urlString, DiskLruCache.Editor editor, PartialDownload partial,
+                             CacheMetadata stale, OutputStream outputStream, boolean decode) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        OutputStream out = outputStream;
+        InputStream in = null;
+        boolean success = false;
+        // set once the body can be continued later, the bytes written so far are kept if the download fails
+        String validator = null;
+        long totalSize = -1;
 
         try {
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection)url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+            mTimedOut = false;
+            final long remaining = getDeadline() - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                mTimedOut = true;
+                return false;
+            }
+            final int[] targetSize = getKnownTargetSize();
+            urlConnection = mWorker.getDownloader().open(urlString,
+                                                         timeoutFor(mLoaderConfig.mConnectTimeout, remaining),
+                                                         timeoutFor(mLoaderConfig.mReadTimeout, remaining),
+                                                         targetSize[0], targetSize[1]);
+            final boolean resuming = null != editor && null != partial && partial.load();
+            if (resuming) {
+                // If-Range: the server sends the whole image instead if it changed meanwhile
+                urlConnection.setRequestProperty("Range", "bytes=" + partial.getOffset() + "-");
+                urlConnection.setRequestProperty("If-Range", partial.getValidator());
+            } else if (null != editor && null != stale) {
+                stale.addValidators(urlConnection);
+            }
+            mConnection = urlConnection;
+            if (mCancelled) {
+                return false;
+            }
+            // timed from the connection being up, a new connection's handshake is not taken for queueing
+            urlConnection.connect();
+            final long requested = SystemClock.uptimeMillis();
+            final int responseCode = urlConnection.getResponseCode();
+            if (resuming && responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                partial.delete();
+            }
+            if (null != editor && null != stale && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                mWorker.onNetworkLatency(urlString, SystemClock.uptimeMillis() - requested);
+                // the image is still valid, only the metadata of the entry is written
+                editor.set(ImageCache.DISK_METADATA_INDEX,
+                           CacheMetadata.fromResponse(urlConnection, stale, System.currentTimeMillis(),
+                                                     mLoaderConfig.mHeuristicFreshness).toString());
+                Log.d(TAG, "not modified: " + urlString);
+                success = true;
+                return true;
+            }
+            in = urlConnection.getInputStream();
+            mWorker.onNetworkLatency(urlString, SystemClock.uptimeMillis() - requested);
+
+            final int contentLength = urlConnection.getContentLength();
+            long offset = 0;
+            if (resuming && resumesAt(urlConnection, partial.getOffset())) {
+                offset = partial.getOffset();
+                totalSize = partial.getTotalLength();
+                validator = partial.getValidator();
+                out = editor.newOutputStream(DISK_CACHE_INDEX, partial.getFile(), totalSize);
+                // the decoder needs the image from its first byte, the decode stage reads it from the cache
+                decode = false;
+                Log.d(TAG, "resuming download at " + offset + " of " + totalSize + " bytes");
+            } else {
+                if (resuming) {
+                    partial.delete();
+                }
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    // e.g. a 206 for another range, its bytes are not the image from its start
+                    Log.e(TAG, "unexpected response " + responseCode + " for " + urlString);
+                    return false;
+                }
+                totalSize = contentLength;
+                if (null != editor) {
+                    out = editor.newOutputStream(DISK_CACHE_INDEX, contentLength);
+                    validator = validatorOf(urlConnection);
+                }
+            }
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final DownloadStream body = new DownloadStream(in, out, offset, totalSize);
+            if (decode) {
+                decodeWhileDownloading(body);
+            }
+            final long loadedBytes = drain(body);
+            publishProgress(totalSize, offset + loadedBytes);
+            if (contentLength >= 0 && loadedBytes != contentLength) {
+                Log.e(TAG, "downloadUrlToStream truncated, " + loadedBytes + " of " + contentLength + " bytes");
+                return false;
+            }
+            if (null != mFlight) {
+                mFlight.setLoadedBytes(offset + loadedBytes);
+            }
+            if (null != editor) {
+                editor.set(ImageCache.DISK_METADATA_INDEX,
+                           CacheMetadata.fromResponse(urlConnection, null, System.currentTimeMillis(),
+                                                     mLoaderConfig.mHeuristicFreshness).toString());
+                mReplacedStale = null != stale;
             }
             Log.d(TAG, "downloadUrlToStream success...");
+            success = true;
             return true;
+        } catch (final SocketTimeoutException e) {
+            Log.e(TAG, "Timeout in downloadBitmap - " + e);
+            mTimedOut = true;
+            mWorker.onNetworkTimeout();
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
-            if (urlConnection != null) {
+            mConnection = null;
+            // a fully read response is only closed, which keeps its connection alive for the next download
+            if (urlConnection != null && !success) {
                 urlConnection.disconnect();
             }
             try {
@@ -328,10 +806,250 @@ public class ImageLoadeRunnable implements Runnable {
                 }
             } catch (final IOException e) {
             }
+            if (!success && null != partial && null != validator && totalSize >= PartialDownload.MIN_LENGTH) {
+                partial.save(editor, DISK_CACHE_INDEX, validator, totalSize);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <b>true</b> if the response continues the image at offset
+     */
+    private static boolean resumesAt(HttpURLConnection connection, long offset) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return false;
+        }
+        // e.g. "bytes 131072-524287/524288"
+        final String range = connection.getHeaderField("Content-Range");
+        if (null == range || !range.startsWith("bytes ")) {
+            return false;
+        }
+        final int dash = range.indexOf('-');
+        try {
+            return dash > 0 && Long.parseLong(range.substring("bytes ".length(), dash).trim()) == offset;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the validator to continue the response with, null if the server doesn't take ranges or the response has
+     *         no strong validator
+     */
+    private static String validatorOf(HttpURLConnection connection) {
+        if (!"bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) {
+            return null;
+        }
+        final String etag = connection.getHeaderField("ETag");
+        // If-Range only takes strong entity tags
+        if (null != etag && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    private static long drain(TeeInputStream body) throws IOException {
+        final ByteArrayPool pool = ByteArrayPool.get();
+        final byte[] buffer = pool.acquire();
+        try {
+            return body.drain(buffer);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Decodes the image from the body as it is downloaded and written to the disk cache, and displays it right away;
+     * the rest of the body, e.g. trailing metadata, is then only written to the cache. Nothing is displayed if the image
+     * can't be decoded from the stream, the decode stage reads it from the disk cache then.
+     */
+    private void decodeWhileDownloading(DownloadStream body) throws IOException {
+        final int[] targetSize = mFlight.getTargetSize(mLoaderConfig);
+        final byte[] buffer = DECODE_BUFFERS.acquire();
+        final InputStream in = new PooledBufferedInputStream(body, buffer);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        mDecodeOptions = options;
+        Bitmap bitmap;
+        try {
+            options.inJustDecodeBounds = true;
+            in.mark(DECODE_MARK_LIMIT);
+            BitmapFactory.decodeStream(in, null, options);
+            body.checkException();
+            if (options.mCancel || options.outWidth <= 0 || options.outHeight <= 0) {
+                return;
+            }
+            try {
+                in.reset();
+            } catch (IOException e) {
+                Log.d(TAG, "image header exceeds " + DECODE_MARK_LIMIT + " bytes, decoding from the disk cache");
+                return;
+            }
+            options.inSampleSize = calculateInSampleSize(options, targetSize[0], targetSize[1]);
+            options.inJustDecodeBounds = false;
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+            body.checkException();
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "decodeWhileDownloading OutOfMemoryError- " + e);
+            return;
+        } finally {
+            mDecodeOptions = null;
+            // bytes the stream buffered beyond the decode were written to the cache already
+            DECODE_BUFFERS.release(buffer);
+        }
+
+        if (bitmap == null || bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0 || mCancelled || isTaskNotActual()) {
+            return;
+        }
+        Log.d(TAG, "decoded while downloading, " + body.getCount() + " bytes read");
+        mLoaderConfig.mImageCache.addBitmapToCache(imageUrl, bitmap);
+        mDisplayed = true;
+        display(bitmap);
+    }
+
+    private void publishProgress(long totalBytes, long loadedBytes) {
+        if (null == mFlight) {
+            return;
+        }
+        final int totalSize = (int)Math.min(Integer.MAX_VALUE, totalBytes);
+        final int progress = (int)Math.min(Integer.MAX_VALUE, loadedBytes);
+        for (final ImageLoadInfo target : mFlight.getTargets()) {
+            Runnable r = new Runnable() {
+
+                @Override
+                public void run() {
+                    target.mCallback.publishProgress(totalSize, progress);
+                }
+            };
+            runTask(r, handlerFor(target));
+        }
+    }
+
+    private boolean hasMirrors() {
+        return null != mLoadInfo.mMirrors && !mLoadInfo.mMirrors.isEmpty();
+    }
+
+    /**
+     * Buffered stream over a pooled buffer. A mark up to the buffer length never grows it, a longer one is dropped.
+     */
+    private static class PooledBufferedInputStream extends BufferedInputStream {
+
+        PooledBufferedInputStream(InputStream in, byte[] buffer){
+            super(in, 1);
+            buf = buffer;
+        }
+    }
+
+    /**
+     * Body of the running download, aborts when the task is cancelled or the deadline passed and publishes the progress
+     * as it is read.
+     */
+    private class DownloadStream extends TeeInputStream {
+
+        /** Bytes of the image written before this body, by an interrupted attempt */
+        private final long mOffset;
+
+        private final long mTotalSize;
+
+        private final long mProgressStep;
+
+        private long       mNextProgress;
+
+        /**
+         * @param totalSize size of the whole image, -1 if unknown
+         */
+        DownloadStream(InputStream in, OutputStream out, long offset, long totalSize){
+            super(in, out);
+            mOffset = offset;
+            mTotalSize = totalSize;
+            mProgressStep = totalSize > 0 ? Math.max(ByteArrayPool.BUFFER_SIZE, totalSize / PROGRESS_STEPS)
+                                          : PROGRESS_STEP_UNKNOWN_SIZE;
+            mNextProgress = mProgressStep;
+        }
+
+        @Override
+        protected void onRead(long count) throws IOException {
+            if (mCancelled) {
+                throw new IOException("download cancelled");
+            }
+            final long loaded = mOffset + count;
+            if (loaded < mNextProgress) {
+                return;
+            }
+            mNextProgress = loaded + mProgressStep;
+            if (SystemClock.uptimeMillis() >= getDeadline()) {
+                mTimedOut = true;
+                throw new IOException("download deadline passed");
+            }
+            publishProgress(mTotalSize, loaded);
+        }
+    }
+
+    /**
+     * Downloads the url or one of its mirrors, whichever is faster, see {@link HedgedDownload}. The image is written
+     * under the key of the canonical url.
+     *
+     * @return true if successful, false otherwise
+     */
+    private boolean downloadHedged(DiskLruCache diskCache, DiskLruCache.Editor editor) {
+        mTimedOut = false;
+        final long deadline = getDeadline();
+        final long remaining = deadline - SystemClock.uptimeMillis();
+        if (remaining <= 0) {
+            mTimedOut = true;
+            return false;
+        }
+        final List<String> urls = new ArrayList<String>(1 + mLoadInfo.mMirrors.size());
+        urls.add(mSource);
+        urls.addAll(mLoadInfo.mMirrors);
+        final int[] targetSize = getKnownTargetSize();
+        final File tempDirectory = new File(diskCache.getDirectory(), ImageCache.TEMP_DIRECTORY);
+        final HedgedDownload download = new HedgedDownload(mWorker, mWorker.getHedgeExecutor(), urls, tempDirectory,
+                                                           mWorker.getHedgeDelay(), deadline,
+                                                           timeoutFor(mLoaderConfig.mConnectTimeout, remaining),
+                                                           timeoutFor(mLoaderConfig.mReadTimeout, remaining),
+                                                           targetSize[0], targetSize[1],
+                                                           mLoaderConfig.mHeuristicFreshness) {
+
+            @Override
+            protected void onProgress(long totalBytes, long loadedBytes) {
+                publishProgress(totalBytes, loadedBytes);
+            }
+        };
+        mHedgedDownload = download;
+        try {
+            if (mCancelled) {
+                return false;
+            }
+            final boolean downloaded = download.download(editor, DISK_CACHE_INDEX);
+            mTimedOut = download.isTimedOut();
+            if (downloaded) {
+                editor.set(ImageCache.DISK_METADATA_INDEX, download.getMetadata().toString());
+                mReplacedStale = true;
+                final long loadedBytes = download.getLoadedBytes();
+                if (null != mFlight) {
+                    mFlight.setLoadedBytes(loadedBytes);
+                }
+                publishProgress(loadedBytes, loadedBytes);
+            }
+            return downloaded && !mCancelled;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in downloadHedged - " + e);
+        } finally {
+            mHedgedDownload = null;
         }
         return false;
     }
 
+    /** @return size of the views waiting for the image, sent as client hints; 0 where unknown */
+    private int[] getKnownTargetSize() {
+        return null == mFlight ? new int[] { 0, 0 } : mFlight.getKnownTargetSize();
+    }
+
+    private long getDeadline() {
+        return null == mFlight ? Long.MAX_VALUE : mFlight.getDeadline();
+    }
+
     /**
      * Workaround for bug pre-Froyo, see here for more info:
      * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
@@ -343,23 +1061,6 @@ public class ImageLoadeRunnable implements Runnable {
         }
     }
 
-    private boolean waitIfPaused() {
-        final AtomicBoolean pause = mWorker.getIsPauseWork();
-        if (pause.get()) {
-            synchronized (mWorker.getPauseLock()) {
-                if (pause.get()) {
-                    try {
-                        mWorker.getPauseLock().wait();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        return true;
-                    }
-                }
-            }
-        }
-        return isTaskNotActual();
-    }
-
     public String getImageUrl() {
         return imageUrl;
     }
@@ -1,5 +1,13 @@
 package com.android.library.images;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
@@ -9,6 +17,8 @@ import android.view.View;
 import android.widget.ImageView;
 
 import com.android.library.images.aware.ImageWrappedView;
+import com.android.library.images.aware.NonViewAware;
+import com.android.library.images.display.BitmapDisplayer;
 import com.android.library.inf.IImageLoadCallback;
 import com.android.library.os.AsyncTask;
 
@@ -20,6 +30,21 @@ public class ImageLoader {
 
     private ImageLoaderWorker        mLoaderWorker;
 
+    /** Requests by tag, idle tags are forgotten when the map grew or the tag was evicted */
+    private final Map<Object, ImageRequestScope> mTagScopes = new HashMap<Object, ImageRequestScope>();
+
+    private static final int         MIN_TAG_SWEEP = 16;
+
+    /** Size of mTagScopes at which idle tags are swept out, guarded by mTagScopes */
+    private int                      mTagSweepSize = MIN_TAG_SWEEP;
+
+    /** One wrapper per view, so displaying into an ImageView allocates nothing on a memory cache hit */
+    private final Map<ImageView, ImageWrappedView> mWrappedViews = new WeakHashMap<ImageView, ImageWrappedView>();
+
+    private static final BitmapDisplayer DEFAULT_DISPLAYER = DisplayConfiguration.createBitmapDisplayer();
+
+    private static Handler sMainHandler;
+
     // Single instance lazy mode
     static class SingletonHolder {
 
@@ -46,11 +71,44 @@ public class ImageLoader {
         }
     }
 
-    public void displayImage(ImageView imageView, String object) {
-        displayImage(new ImageWrappedView(imageView), object, null, null);
+    public ImageLoadHandle displayImage(ImageView imageView, String object) {
+        return displayImage(wrap(imageView), object, null, null);
+    }
+
+    ImageWrappedView wrap(ImageView imageView) {
+        synchronized (mWrappedViews) {
+            ImageWrappedView wrappedView = mWrappedViews.get(imageView);
+            if (null == wrappedView) {
+                wrappedView = new ImageWrappedView(imageView);
+                mWrappedViews.put(imageView, wrappedView);
+            }
+            return wrappedView;
+        }
     }
-    public void displayImage(ImageWrappedView imageView, String url, DisplayConfiguration displayConfiguration,
-                             IImageLoadCallback callback) {
+
+    /**
+     * @return handle to cancel the request; requests served from the memory cache return an already finished handle
+     */
+    public ImageLoadHandle displayImage(ImageWrappedView imageView, String url, DisplayConfiguration displayConfiguration,
+                                       IImageLoadCallback callback) {
+        return displayImage(imageView, url, null, displayConfiguration, callback, null);
+    }
+
+    /**
+     * Displays an image which is also served by mirrors, e.g. other CDNs. When the url has not produced its first
+     * bytes within the usual latency of recent downloads, or fails, a mirror is tried as well and the first complete
+     * download wins. The image is cached under url whichever server delivered it.
+     *
+     * @param mirrors alternates of url, in the order they are tried
+     */
+    public ImageLoadHandle displayImage(ImageWrappedView imageView, String url, List<String> mirrors,
+                                       DisplayConfiguration displayConfiguration, IImageLoadCallback callback) {
+        return displayImage(imageView, url, mirrors, displayConfiguration, callback, null);
+    }
+
+    ImageLoadHandle displayImage(ImageWrappedView imageView, String url, List<String> mirrors,
+                                 DisplayConfiguration displayConfiguration, IImageLoadCallback callback,
+                                 ImageRequestScope scope) {
         checkConfiguration();
 
         if (null == callback) {
@@ -62,11 +120,26 @@ public class ImageLoader {
             callback.onLoadingStarted(url, imageView.getWrappedView());
             imageView.setImageDrawable(null);
             callback.onLoadingComplete(url, imageView.getWrappedView(), null);
-            return;
+            return COMPLETED_HANDLE;
+        }
+
+        // the size of the view picks the variant to fetch; a view which is not laid out yet gets it resolved once it is
+        final boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        final String requestedUrl = url;
+        if (!onMainThread || !DeferredLoad.needsLayout(imageView)) {
+            url = mLoaderWorker.resolveVariant(url, imageView.getWidth(), imageView.getHeight());
+            mirrors = mLoaderWorker.resolveVariants(mirrors, imageView.getWidth(), imageView.getHeight());
         }
+        final String source = url;
+        url = mLoaderWorker.keyFor(url, imageView.getWidth());
         mLoaderWorker.prepareDisplayTaskFor(imageView, url);
 
-        callback.onLoadingStarted(url, imageView.getWrappedView());
+        ImageRequestScope tagScope = null;
+        if (null != displayConfiguration) {
+            tagScope = scopeForTag(displayConfiguration.getTag(), true);
+        }
+
+        callback.onLoadingStarted(source, imageView.getWrappedView());
 
         // get bitmap from memory cache
 
@@ -76,26 +149,248 @@ public class ImageLoader {
 
             Log.d(TAG, "start to display image from memory cache ....");
 
-            displayConfiguration.getDisplayer().display(bitmap, imageView);
-            callback.onLoadingComplete(url, imageView.getWrappedView(), bitmap);
+            final BitmapDisplayer displayer = null == displayConfiguration ? DEFAULT_DISPLAYER
+                                                                           : displayConfiguration.getDisplayer();
+            displayer.display(bitmap, imageView);
+            track(url, null, scope, tagScope);
+            callback.onLoadingComplete(source, imageView.getWrappedView(), bitmap);
+            return COMPLETED_HANDLE;
         } else {
 
             Log.d(TAG, "new task  to display image  ....");
 
-            final ImageLoadInfo info = new ImageLoadInfo(mLoaderConfiguration, imageView, url, displayConfiguration,
-                                                         mLoaderWorker.getLockForUri(url), callback);
+            final ImageLoadInfo info = new ImageLoadInfo(mLoaderWorker, mLoaderConfiguration, imageView, url,
+                                                         displayConfiguration, callback,
+                                                         defineHandler(displayConfiguration));
+            info.mRequestedUrl = requestedUrl;
+            if (!url.equals(source)) {
+                info.mSource = source;
+            }
+            info.mMirrors = mirrors;
+            track(url, info, scope, tagScope);
+
+            if (onMainThread && DeferredLoad.deferIfNeeded(mLoaderWorker, info)) {
+                // submitted once the view is laid out and its size is known
+                return info;
+            }
 
-            // start to load bitmap from disk cache or download ..
-            final ImageLoadeRunnable task = new ImageLoadeRunnable(mLoaderWorker, info,
-                                                                   defineHandler(displayConfiguration));
-            mLoaderWorker.submit(task);
+            // start to load bitmap from disk cache or download, requests for an url which is already loading are
+            // attached to that task
+            mLoaderWorker.submit(info);
+            return info;
         }
     }
 
+    /**
+     * Loads a bitmap without any view, e.g. for notifications or widgets. The load shares the memory cache, disk cache,
+     * in-flight loads and executors with {@link #displayImage}; several loads can be started before waiting on any.
+     *
+     * @param width decode width, the bitmap is sampled down to about this size
+     * @param height decode height
+     * @return future of the bitmap, cancelling it cancels the load
+     */
+    public ImageLoadFuture loadBitmap(String url, int width, int height) {
+        return loadBitmap(url, width, height, null);
+    }
+
+    ImageLoadFuture loadBitmap(String url, int width, int height, ImageRequestScope scope) {
+        checkConfiguration();
+        final String source = mLoaderWorker.resolveVariant(url, width, height);
+        url = mLoaderWorker.keyFor(source, width);
+
+        final Bitmap bitmap = mLoaderConfiguration.mImageCache.getBitmapFromMemoCache(url);
+        if (null != bitmap && !bitmap.isRecycled()) {
+            track(url, null, scope, null);
+            return new ImageLoadFuture(bitmap);
+        }
+
+        final ImageLoadFuture future = new ImageLoadFuture();
+        final ImageLoadInfo info = new ImageLoadInfo(mLoaderWorker, mLoaderConfiguration,
+                                                     new NonViewAware(width, height), url, null, future.getCallback(),
+                                                     null);
+        if (!url.equals(source)) {
+            info.mSource = source;
+        }
+        future.setLoadInfo(info);
+        track(url, info, scope, null);
+        mLoaderWorker.submit(info);
+        return future;
+    }
+
+    /**
+     * Loads a bitmap and waits for it. Must not be called on the main thread, nor from a callback running on a loader
+     * thread.
+     *
+     * @return the bitmap, null if the load failed, was cancelled or the thread was interrupted
+     */
+    public Bitmap loadBitmapSync(String url, int width, int height) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("loadBitmapSync must not be called on the main thread");
+        }
+        final ImageLoadFuture future = loadBitmap(url, width, height);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.d(TAG, "loadBitmapSync failed: " + e.getCause());
+        } catch (CancellationException e) {
+            Log.d(TAG, "loadBitmapSync cancelled: " + url);
+        }
+        return null;
+    }
+
+    /**
+     * Loads the urls into the disk cache, and into the memory cache if the options ask for it, without any view. The
+     * loads run at the lowest priority within the concurrency and byte budgets of the options.
+     *
+     * @return group to cancel all loads of this call at once
+     */
+    public PrefetchGroup prefetch(List<String> urls, PrefetchOptions options) {
+        checkConfiguration();
+        if (null == options) {
+            options = new PrefetchOptions.Builder().build();
+        }
+        final PrefetchGroup group = new PrefetchGroup(mLoaderWorker, mLoaderConfiguration, urls, options);
+        group.start();
+        return group;
+    }
+
+    /**
+     * @return new scope for the requests of one screen, see {@link ImageRequestScope}
+     */
+    public ImageRequestScope newRequestScope() {
+        checkConfiguration();
+        return new ImageRequestScope(this, mLoaderWorker, mLoaderConfiguration);
+    }
+
+    private static void track(String url, ImageLoadInfo info, ImageRequestScope scope, ImageRequestScope tagScope) {
+        if (null != info) {
+            info.mScope = scope;
+            info.mTagScope = tagScope;
+        }
+        if (null != scope) {
+            scope.track(url, info);
+        }
+        if (null != tagScope) {
+            tagScope.track(url, info);
+        }
+    }
+
+    private ImageRequestScope scopeForTag(Object tag, boolean create) {
+        if (null == tag) {
+            return null;
+        }
+        synchronized (mTagScopes) {
+            ImageRequestScope scope = mTagScopes.get(tag);
+            if (null == scope && create) {
+                if (mTagScopes.size() >= mTagSweepSize) {
+                    sweepIdleTags();
+                }
+                scope = new ImageRequestScope(this, mLoaderWorker, mLoaderConfiguration);
+                mTagScopes.put(tag, scope);
+            }
+            return scope;
+        }
+    }
+
+    /**
+     * Forgets tags which are neither paused nor loading, e.g. tags whose screens were cancelled but never evicted.
+     * Runs once the map doubled since the last sweep, so tags cost constant time on average.
+     */
+    private void sweepIdleTags() {
+        for (Iterator<ImageRequestScope> i = mTagScopes.values().iterator(); i.hasNext();) {
+            if (i.next().isIdle()) {
+                i.remove();
+            }
+        }
+        mTagSweepSize = Math.max(MIN_TAG_SWEEP, mTagScopes.size() * 2);
+    }
+
+    private void forgetTagIfIdle(Object tag) {
+        synchronized (mTagScopes) {
+            final ImageRequestScope scope = mTagScopes.get(tag);
+            if (null != scope && scope.isIdle()) {
+                mTagScopes.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * Cancels every request of the tag which is still loading, see {@link DisplayConfiguration.Builder#setTag(Object)}.
+     */
+    public void cancelTag(Object tag) {
+        final ImageRequestScope scope = scopeForTag(tag, false);
+        if (null != scope) {
+            // kept for evictTag, idle tags are swept out later
+            scope.cancel();
+        }
+    }
+
+    /**
+     * Parks the loads of the tag at their next stage boundary, including loads requested later with this tag. A load
+     * shared with a request of another tag keeps running.
+     */
+    public void pauseTag(Object tag) {
+        checkConfiguration();
+        final ImageRequestScope scope = scopeForTag(tag, true);
+        if (null != scope) {
+            scope.pause();
+        }
+    }
+
+    public void resumeTag(Object tag) {
+        final ImageRequestScope scope = scopeForTag(tag, false);
+        if (null != scope) {
+            scope.resume();
+        }
+    }
+
+    /**
+     * Drops the bitmaps requested with the tag from the memory cache, they stay in the disk cache. Together with
+     * {@link #cancelTag(Object)} this releases everything a screen or tab held.
+     */
+    public void evictTag(Object tag) {
+        final ImageRequestScope scope = scopeForTag(tag, false);
+        if (null != scope) {
+            scope.evict();
+            forgetTagIfIdle(tag);
+        }
+    }
+
+    /**
+     * Cancels the request bound to the view. Its load is dropped if no other view waits for the same image.
+     */
+    public void cancelDisplayTask(ImageView imageView) {
+        checkConfiguration();
+        mLoaderWorker.cancelDisplayTaskFor(wrap(imageView));
+    }
+
+    private static final ImageLoadHandle COMPLETED_HANDLE = new ImageLoadHandle() {
+
+                                                              @Override
+                                                              public void cancel() {
+                                                              }
+
+                                                              @Override
+                                                              public boolean isCancelled() {
+                                                                  return false;
+                                                              }
+
+                                                              @Override
+                                                              public boolean isDone() {
+                                                                  return true;
+                                                              }
+                                                          };
+
     private static Handler defineHandler(DisplayConfiguration options) {
-        Handler handler = options.getHandler();
+        Handler handler = null == options ? null : options.getHandler();
         if (handler == null && Looper.myLooper() == Looper.getMainLooper()) {
-            handler = new Handler(Looper.getMainLooper());
+            if (null == sMainHandler) {
+                sMainHandler = new Handler(Looper.getMainLooper());
+            }
+            handler = sMainHandler;
         }
         return handler;
     }
@@ -138,8 +433,11 @@ public class ImageLoader {
         mLoaderWorker.onPause();
     }
 
+    /**
+     * Flushes the disk cache. Loads keep running and the executors stay up for the next screen; use an
+     * {@link ImageRequestScope} to pause or cancel the requests of a single screen.
+     */
     public void onStop() {
-        mLoaderWorker.stop();
         flushCache();
     }
 
@@ -148,7 +446,8 @@ public class ImageLoader {
     }
 
     public void finish() {
-        onStop();
+        mLoaderWorker.stop();
+        flushCache();
         closeCache();
         clear();
         mLoaderConfiguration = null;
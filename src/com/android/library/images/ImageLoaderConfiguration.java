@@ -1,9 +1,18 @@
 package com.android.library.images;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.content.Context;
+import android.util.DisplayMetrics;
 
 import com.android.library.cache.ImageCache;
 import com.android.library.cache.ImageCache.ImageCacheParams;
+import com.android.library.inf.IRequestCustomizer;
+import com.android.library.inf.IUriLoader;
+import com.android.library.inf.IUrlVariantResolver;
 
 public class ImageLoaderConfiguration {
 
@@ -12,8 +21,98 @@ public class ImageLoaderConfiguration {
 
     public Context    mContext;
 
+    // Thread count and queue size of each pipeline stage
+    public int        mNetworkThreadCount;
+    public int        mNetworkQueueSize;
+    public int        mDiskThreadCount;
+    public int        mDiskQueueSize;
+    public int        mDecodeThreadCount;
+    public int        mDecodeQueueSize;
+
+    public QueueProcessingType mTasksProcessingType;
+
+    /** Concurrent downloads from one host */
+    public int        mMaxConnectionsPerHost;
+
+    /** The network stage adapts its concurrency to the observed latency, up to mNetworkThreadCount */
+    public boolean    mAdaptiveNetworkConcurrency;
+
+    /** Downloaded images are decoded while they are written to the disk cache */
+    public boolean    mDecodeWhileDownloading;
+
+    /** Stale disk cache entries are displayed while they are revalidated in the background */
+    public boolean    mServeStaleWhileRevalidate;
+
+    /** Least freshness of responses with validators but without max-age or Expires, in milliseconds */
+    public long       mHeuristicFreshness;
+
+    /** Headers sent with every image request, they replace the default ones of the same name */
+    public Map<String, String> mRequestHeaders;
+
+    /** Changes each image request before it is sent, null if none */
+    public IRequestCustomizer  mRequestCustomizer;
+
+    /** Rewrites requested urls to the variant fitting the view and the network, null to fetch them as they are */
+    public IUrlVariantResolver mVariantResolver;
+
+    /** Loaders of local uris, the custom ones first; uris none of them reads are downloaded */
+    public List<IUriLoader>    mUriLoaders;
+
+    /** The display density and the bucketed width of the target view are sent as client hints (DPR, Width) */
+    public boolean    mClientHints;
+
+    /** Density of the display, the DPR client hint */
+    public float      mDensity;
+
+    // Timeouts in milliseconds, a request timeout of 0 means requests have no deadline
+    public int        mConnectTimeout;
+    public int        mReadTimeout;
+    public long       mRequestTimeout;
+
+    // Decode size of targets whose size is unknown, and the upper bound of every decode
+    public int        mMaxDecodeWidth;
+    public int        mMaxDecodeHeight;
+
+    /**
+     * Order of requests with the same priority inside a stage queue. LIFO serves the latest requested images first,
+     * which are the ones on screen while a list is scrolled.
+     */
+    public enum QueueProcessingType {
+        FIFO, LIFO
+    }
+
     public ImageLoaderConfiguration(Builder builder, Context context){
         mContext = context;
+        mNetworkThreadCount = builder.mNetworkThreadCount;
+        mNetworkQueueSize = builder.mNetworkQueueSize;
+        mDiskThreadCount = builder.mDiskThreadCount;
+        mDiskQueueSize = builder.mDiskQueueSize;
+        mDecodeThreadCount = builder.mDecodeThreadCount;
+        mDecodeQueueSize = builder.mDecodeQueueSize;
+        mTasksProcessingType = builder.mTasksProcessingType;
+        mAdaptiveNetworkConcurrency = builder.mAdaptiveNetworkConcurrency;
+        mDecodeWhileDownloading = builder.mDecodeWhileDownloading;
+        mServeStaleWhileRevalidate = builder.mServeStaleWhileRevalidate;
+        mHeuristicFreshness = builder.mHeuristicFreshness;
+        mMaxConnectionsPerHost = builder.mMaxConnectionsPerHost;
+        mRequestHeaders = new LinkedHashMap<String, String>(builder.mRequestHeaders);
+        mRequestCustomizer = builder.mRequestCustomizer;
+        mVariantResolver = builder.mVariantResolver;
+        mUriLoaders = new ArrayList<IUriLoader>(builder.mUriLoaders);
+        mUriLoaders.addAll(LocalUriLoaders.all());
+        mClientHints = builder.mClientHints;
+        mConnectTimeout = builder.mConnectTimeout;
+        mReadTimeout = builder.mReadTimeout;
+        mRequestTimeout = builder.mRequestTimeout;
+        mMaxDecodeWidth = builder.mMaxDecodeWidth;
+        mMaxDecodeHeight = builder.mMaxDecodeHeight;
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mDensity = metrics.density;
+        if (mMaxDecodeWidth <= 0 || mMaxDecodeHeight <= 0) {
+            // a full screen image, nothing is displayed larger than that
+            mMaxDecodeWidth = metrics.widthPixels;
+            mMaxDecodeHeight = metrics.heightPixels;
+        }
         ImageCacheParams params = new ImageCacheParams(context, builder.mDiskCacheName);
         params.mDiskCacheSize = builder.mDiskCacheSize;
         params.mMemoCacheSize = builder.mMemoCacheSize;
@@ -34,6 +133,56 @@ public class ImageLoaderConfiguration {
         public int                 mMemoCacheSize            = DEFAULT_MEMORY_CACHE_SIZE;
         public int                 mDiskCacheSize            = DEFAULT_DISK_CACHE_SIZE;
 
+        public static final int    DEFAULT_NETWORK_THREAD_COUNT = 4;
+        public static final int    DEFAULT_DISK_THREAD_COUNT    = 2;
+        // Leave one core to the UI thread
+        public static final int    DEFAULT_DECODE_THREAD_COUNT  = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        public static final int    DEFAULT_STAGE_QUEUE_SIZE     = 128;
+
+        public int                 mNetworkThreadCount       = DEFAULT_NETWORK_THREAD_COUNT;
+        public int                 mNetworkQueueSize         = DEFAULT_STAGE_QUEUE_SIZE;
+        public int                 mDiskThreadCount          = DEFAULT_DISK_THREAD_COUNT;
+        public int                 mDiskQueueSize            = DEFAULT_STAGE_QUEUE_SIZE;
+        public int                 mDecodeThreadCount        = DEFAULT_DECODE_THREAD_COUNT;
+        public int                 mDecodeQueueSize          = DEFAULT_STAGE_QUEUE_SIZE;
+
+        public QueueProcessingType mTasksProcessingType      = QueueProcessingType.FIFO;
+
+        public boolean             mAdaptiveNetworkConcurrency = true;
+
+        public boolean             mDecodeWhileDownloading   = true;
+
+        public boolean             mServeStaleWhileRevalidate = true;
+
+        public static final long   DEFAULT_HEURISTIC_FRESHNESS = 5 * 60 * 1000;
+
+        public long                mHeuristicFreshness       = DEFAULT_HEURISTIC_FRESHNESS;
+
+        public static final int    DEFAULT_MAX_CONNECTIONS_PER_HOST = 2;
+
+        public int                 mMaxConnectionsPerHost    = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+        public final Map<String, String> mRequestHeaders     = new LinkedHashMap<String, String>();
+
+        public IRequestCustomizer  mRequestCustomizer;
+
+        public IUrlVariantResolver mVariantResolver;
+
+        public final List<IUriLoader> mUriLoaders            = new ArrayList<IUriLoader>();
+
+        public boolean             mClientHints              = true;
+
+        public static final int    DEFAULT_CONNECT_TIMEOUT   = 15 * 1000;
+        public static final int    DEFAULT_READ_TIMEOUT      = 20 * 1000;
+
+        public int                 mConnectTimeout           = DEFAULT_CONNECT_TIMEOUT;
+        public int                 mReadTimeout              = DEFAULT_READ_TIMEOUT;
+        public long                mRequestTimeout;
+
+        /** 0 means the size of the screen */
+        public int                 mMaxDecodeWidth;
+        public int                 mMaxDecodeHeight;
+
         public Builder(Context context){
             mContext = context;
         }
@@ -52,6 +201,180 @@ public class ImageLoaderConfiguration {
             return this;
         }
 
+        /**
+         * @param threadCount concurrent downloads
+         * @param queueSize downloads waiting for a thread. When the queue is full the prefetch which would run last is
+         *            dropped; requests for views and tasks handed over from the disk stage are never dropped, the
+         *            queue grows past the size for them
+         */
+        public Builder setNetworkStage(int threadCount, int queueSize) {
+            checkStage(threadCount, queueSize);
+            mNetworkThreadCount = threadCount;
+            mNetworkQueueSize = queueSize;
+            return this;
+        }
+
+        public Builder setDiskStage(int threadCount, int queueSize) {
+            checkStage(threadCount, queueSize);
+            mDiskThreadCount = threadCount;
+            mDiskQueueSize = queueSize;
+            return this;
+        }
+
+        public Builder setDecodeStage(int threadCount, int queueSize) {
+            checkStage(threadCount, queueSize);
+            mDecodeThreadCount = threadCount;
+            mDecodeQueueSize = queueSize;
+            return this;
+        }
+
+        /**
+         * @param maxConnections concurrent downloads from one host, so a slow host leaves network threads to the others
+         */
+        public Builder setMaxConnectionsPerHost(int maxConnections) {
+            if (maxConnections < 1) {
+                throw new IllegalArgumentException("max connections per host must be positive");
+            }
+            mMaxConnectionsPerHost = maxConnections;
+            return this;
+        }
+
+        /**
+         * @param adaptive <b>true</b> to lower the number of concurrent downloads while latency shows congestion and
+         *            raise it again up to the network thread count while it stays flat; <b>false</b> to always use
+         *            the thread count
+         */
+        public Builder setAdaptiveNetworkConcurrency(boolean adaptive) {
+            mAdaptiveNetworkConcurrency = adaptive;
+            return this;
+        }
+
+        /**
+         * @param decode <b>true</b> to decode a downloaded image from the network stream while it is written to the
+         *            disk cache, it is displayed before the cache entry is complete; <b>false</b> to decode it from
+         *            the disk cache once the download finished
+         */
+        public Builder setDecodeWhileDownloading(boolean decode) {
+            mDecodeWhileDownloading = decode;
+            return this;
+        }
+
+        /**
+         * @param serveStale <b>true</b> to display a disk cache entry whose freshness expired right away and revalidate
+         *            it in the background, the next request gets the revalidated image; <b>false</b> to revalidate it
+         *            before it is displayed
+         */
+        public Builder setServeStaleWhileRevalidate(boolean serveStale) {
+            mServeStaleWhileRevalidate = serveStale;
+            return this;
+        }
+
+        /**
+         * @param millis how long a response with an ETag or Last-Modified but without max-age or Expires is fresh at
+         *            least; a tenth of its age since Last-Modified applies when that is longer (RFC 7234 4.2.2). 0
+         *            revalidates such responses on every use
+         */
+        public Builder setHeuristicFreshness(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("heuristic freshness must not be negative");
+            }
+            mHeuristicFreshness = millis;
+            return this;
+        }
+
+        /**
+         * Adds a header to every image request, e.g. an API key of the CDN. It replaces a default header of the same
+         * name (User-Agent, Accept).
+         */
+        public Builder addRequestHeader(String name, String value) {
+            mRequestHeaders.put(name, value);
+            return this;
+        }
+
+        public Builder setRequestCustomizer(IRequestCustomizer customizer) {
+            mRequestCustomizer = customizer;
+            return this;
+        }
+
+        /**
+         * Fetches a variant of each requested url picked from the size the image is shown at and the network type,
+         * e.g. a 256px thumbnail instead of the original. Callbacks report the url of the variant.
+         */
+        public Builder setUrlVariantResolver(IUrlVariantResolver resolver) {
+            mVariantResolver = resolver;
+            return this;
+        }
+
+        /**
+         * Adds a loader of a uri scheme, asked before the built-in ones of {@link LocalUriLoaders}. Images it loads
+         * are kept in the memory cache only.
+         */
+        public Builder addUriLoader(IUriLoader loader) {
+            mUriLoaders.add(loader);
+            return this;
+        }
+
+        /**
+         * @param clientHints <b>true</b> to send the display density (DPR) and the width of the target view in pixels
+         *            (Width) with every image request, so a server supporting client hints can size the image. The
+         *            width is rounded up to a bucket which is part of the cache key, views of another bucket don't get
+         *            an image sized for a smaller view. On by default.
+         */
+        public Builder setClientHints(boolean clientHints) {
+            mClientHints = clientHints;
+            return this;
+        }
+
+        public Builder setTasksProcessingOrder(QueueProcessingType type) {
+            mTasksProcessingType = type;
+            return this;
+        }
+
+        /**
+         * @param connectMillis timeout of establishing a connection
+         * @param readMillis timeout of a single read, a stalled download fails after it
+         */
+        public Builder setNetworkTimeouts(int connectMillis, int readMillis) {
+            if (connectMillis < 1 || readMillis < 1) {
+                throw new IllegalArgumentException("network timeouts must be positive");
+            }
+            mConnectTimeout = connectMillis;
+            mReadTimeout = readMillis;
+            return this;
+        }
+
+        /**
+         * @param millis default deadline of a request, counted from the request through every stage; 0 for none. See
+         *            {@link DisplayConfiguration.Builder#setTimeout(long)}
+         */
+        public Builder setRequestTimeout(long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("request timeout must not be negative");
+            }
+            mRequestTimeout = millis;
+            return this;
+        }
+
+        /**
+         * @param width decode width of images whose target has no known size, and the largest width any image is
+         *            decoded at; the screen width by default
+         * @param height same for the height
+         */
+        public Builder setMaxDecodeSize(int width, int height) {
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("max decode size must be positive");
+            }
+            mMaxDecodeWidth = width;
+            mMaxDecodeHeight = height;
+            return this;
+        }
+
+        private static void checkStage(int threadCount, int queueSize) {
+            if (threadCount < 1 || queueSize < 1) {
+                throw new IllegalArgumentException("stage thread count and queue size must be positive");
+            }
+        }
+
         public ImageLoaderConfiguration build() {
             return new ImageLoaderConfiguration(this, mContext);
         }
@@ -1,158 +1,1031 @@
 package com.android.library.images;
 
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.os.Build.VERSION_CODES;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
 
+import com.android.library.images.DisplayConfiguration.Priority;
+import com.android.library.images.ImageLoaderConfiguration.QueueProcessingType;
 import com.android.library.images.aware.ImageAware;
+import com.android.library.images.aware.NonViewAware;
+import com.android.library.inf.IUriLoader;
+import com.android.library.inf.IUrlVariantResolver;
+import com.android.library.util.NetworkUtils;
+import com.android.library.util.Utils;
+import com.android.library.util.VersionUtils;
 
 public class ImageLoaderWorker {
 
-    private static final int                 CORE_POOL_SIZE          = 10;
+    private static final String              TAG                     = "ImageLoaderWorker";
 
-    private static final int                 MAX_POOL_SIZE           = 20;
+    private static final int                 KEEP_ALIVE_TIME         = 30;
 
-    private static final int                 KEEP_ALIVE_TIME         = 1;
+    private static final TimeUnit            unit                    = TimeUnit.SECONDS;
 
-    private static final TimeUnit            unit                    = TimeUnit.MILLISECONDS;
+    /** Looks urls up in the memory and disk cache and routes them to the next stage */
+    private ThreadPoolExecutor               diskExecutor;
 
-    private Executor                         taskDistributor;
+    /** Downloads into the disk cache, sized for I/O concurrency */
+    private ThreadPoolExecutor               networkExecutor;
 
-    private Executor                         taskExecutorForCachedImages;
+    /** Decodes disk cache entries, sized to the CPU cores */
+    private ThreadPoolExecutor               decodeExecutor;
 
-    private Executor                         taskExecutor;
+    /** Url each view waits for, read by every stage so it is never locked as a whole */
+    private final ConcurrentHashMap<ImageAware, String> cacheKeysForImageAwares = new ConcurrentHashMap<ImageAware, String>();
 
-    private Executor                         taskExecutorForDisplay;
+    private ImageLoaderConfiguration         mLoaderConfiguration;
 
-    private Map<Integer, String>             cacheKeysForImageAwares = Collections.synchronizedMap(new HashMap<Integer, String>());
+    /** Locks of the urls being downloaded, an entry lives as long as a thread holds or waits for it */
+    private final ConcurrentHashMap<String, UriLock> uriLocks                = new ConcurrentHashMap<String, UriLock>();
 
-    private ImageLoaderConfiguration         mLoaderConfiguration;
+    private final Map<String, ImageLoadFlight> mFlights              = new HashMap<String, ImageLoadFlight>();
+
+    /** Request order, used to break ties between tasks of the same priority */
+    private final AtomicLong                 mSequence               = new AtomicLong();
+
+    /** Concurrency of the network stage, null if it is fixed */
+    private final AdaptiveConcurrencyLimiter mNetworkLimiter;
+
+    private final ImageDownloader            mDownloader;
+
+    /**
+     * Runs the attempts of hedged downloads, while the network thread of the task waits for the first to complete.
+     * Sized like the network stage, so hedging doesn't raise the download concurrency above its limit.
+     */
+    private ThreadPoolExecutor               hedgeExecutor;
+
+    /** Revalidates stale disk cache entries which were displayed meanwhile, one at a time */
+    private ThreadPoolExecutor               revalidateExecutor;
+
+    /** Disconnects the connections of cancelled downloads, off the thread which cancelled them */
+    private ThreadPoolExecutor               disconnectExecutor;
+
+    /** Urls being revalidated in the background, guarded by itself */
+    private final Set<String>                mRevalidating           = new HashSet<String>();
+
+    private static final int                 LATENCY_SAMPLES         = 64;
+
+    /** Recent times to first byte, a ring buffer */
+    private final long[]                     mLatencies              = new long[LATENCY_SAMPLES];
+
+    private int                              mLatencyCount;
+
+    /** ConnectivityManager TYPE_ constant of the active network, kept up to date while a variant resolver is set */
+    private volatile int                     mConnectionType         = -1;
+
+    /** Urls resolved most recently, each with its last variant */
+    private final LruCache<String, Variant>  mVariants               = new LruCache<String, Variant>(MAX_VARIANTS);
+
+    static final int                         MAX_VARIANTS            = 256;
+
+    /** Hedge delay until enough latencies were seen */
+    static final long                        DEFAULT_HEDGE_DELAY     = 1000;
 
-    private final Map<String, ReentrantLock> uriLocks                = new WeakHashMap<String, ReentrantLock>();
+    /** Percentile of the recent latencies after which a request is hedged */
+    static final int                         HEDGE_PERCENTILE        = 90;
 
     public ImageLoaderWorker(ImageLoaderConfiguration loaderConfiguration){
 
         mLoaderConfiguration = loaderConfiguration;
 
-        taskDistributor = new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, unit,
-                                                 new LinkedBlockingDeque<Runnable>());
+        mDownloader = new ImageDownloader(loaderConfiguration);
 
-        taskExecutorForCachedImages = new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, unit,
-                                                             new LinkedBlockingDeque<Runnable>());
+        mNetworkLimiter = loaderConfiguration.mAdaptiveNetworkConcurrency
+                          ? new AdaptiveConcurrencyLimiter(1, loaderConfiguration.mNetworkThreadCount) : null;
 
-        taskExecutor = new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, unit,
-                                              new LinkedBlockingDeque<Runnable>());
+        if (null != loaderConfiguration.mVariantResolver) {
+            watchConnectionType(loaderConfiguration.mContext.getApplicationContext());
+        }
 
-        taskExecutorForDisplay = new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, unit,
-                                                        new LinkedBlockingDeque<Runnable>());
+        initExecutorsIfNeed();
     }
 
-    public void submit(final ImageLoadeRunnable task) {
-        taskDistributor.execute(new Runnable() {
+    /**
+     * Attaches the request to the flight already loading its url, or starts a new flight. The task is only created for
+     * a new flight.
+     */
+    public void submit(final ImageLoadInfo info) {
+        final String url = info.mObject;
+        ImageLoadeRunnable task = null;
+        boolean parked = false;
+        synchronized (mFlights) {
+            ImageLoadFlight flight = mFlights.get(url);
+            if (null != flight && flight.attach(info)) {
+                Log.d(TAG, "attach to the loading task of " + url);
+                reprioritize(flight, true);
+                parked = isParked(flight.getTask());
+            } else {
+                task = new ImageLoadeRunnable(this, info, info.mHandler);
+                flight = new ImageLoadFlight(url, task);
+                flight.attach(info);
+                mFlights.put(url, flight);
+                task.setFlight(flight);
+                task.setPriority(priorityOf(info), mSequence.incrementAndGet());
+            }
+        }
+        if (null != task) {
+            dispatch(task);
+        } else if (parked) {
+            // the flight may have been parked for a paused scope, the new request may not be
+            resumeParked();
+        }
+    }
+
+    /**
+     * Submits a request whose view was just laid out. Its variant is resolved again from the size the view got, the
+     * request is served from the memory cache if that holds the variant.
+     */
+    void submitLaidOut(ImageLoadInfo info) {
+        final String source = resolveVariant(info.mRequestedUrl, info.mWrappedView.getWidth(),
+                                             info.mWrappedView.getHeight());
+        final String variant = keyFor(source, info.mWrappedView.getWidth());
+        if (!variant.equals(info.mObject)) {
+            info.mObject = variant;
+            info.mSource = variant.equals(source) ? null : source;
+            info.mMirrors = resolveVariants(info.mMirrors, info.mWrappedView.getWidth(), info.mWrappedView.getHeight());
+            prepareDisplayTaskFor(info.mWrappedView, variant);
+            if (null != info.mScope) {
+                info.mScope.track(variant, null);
+            }
+            if (null != info.mTagScope) {
+                info.mTagScope.track(variant, null);
+            }
+            final Bitmap bitmap = mLoaderConfiguration.mImageCache.getBitmapFromMemoCache(variant);
+            if (null != bitmap && !bitmap.isRecycled()) {
+                info.markDone();
+                new DisplayRunnable(this, info, bitmap).run();
+                return;
+            }
+        }
+        submit(info);
+    }
+
+    /** Smallest width and height of a variant */
+    static final int                         MIN_VARIANT_SIZE        = 64;
+
+    /**
+     * @param width width the image is shown at, 0 if unknown
+     * @param height height the image is shown at, 0 if unknown
+     * @return url of the variant to fetch, url itself if no {@link IUrlVariantResolver} is configured or the url is
+     *         local
+     */
+    String resolveVariant(String url, int width, int height) {
+        final IUrlVariantResolver resolver = mLoaderConfiguration.mVariantResolver;
+        if (null == resolver || null == url || null != uriLoaderFor(url)) {
+            return url;
+        }
+        final int bucketWidth = bucket(width, mLoaderConfiguration.mMaxDecodeWidth);
+        final int bucketHeight = bucket(height, mLoaderConfiguration.mMaxDecodeHeight);
+        final int connectionType = mConnectionType;
+        // views of a list share their size, so the last variant of a url is usually the one asked for again
+        final Variant last = mVariants.get(url);
+        if (null != last && last.matches(bucketWidth, bucketHeight, connectionType)) {
+            return last.mUrl;
+        }
+        final String variant = resolver.resolveVariant(url, bucketWidth, bucketHeight, connectionType);
+        final String resolved = null == variant ? url : variant;
+        mVariants.put(url, new Variant(resolved, bucketWidth, bucketHeight, connectionType));
+        return resolved;
+    }
+
+    /**
+     * Variant a url was resolved to, with the inputs it was resolved from.
+     */
+    private static class Variant {
+
+        final String mUrl;
+
+        final int    mWidth;
+
+        final int    mHeight;
+
+        final int    mConnectionType;
+
+        Variant(String url, int width, int height, int connectionType){
+            mUrl = url;
+            mWidth = width;
+            mHeight = height;
+            mConnectionType = connectionType;
+        }
+
+        boolean matches(int width, int height, int connectionType) {
+            return mWidth == width && mHeight == height && mConnectionType == connectionType;
+        }
+    }
+
+    /**
+     * Keeps the connection type up to date from connectivity broadcasts, so resolving a variant makes no binder call.
+     */
+    private void watchConnectionType(final Context context) {
+        mConnectionType = NetworkUtils.getConnectionType(context);
+        context.registerReceiver(new BroadcastReceiver() {
 
             @Override
-            public void run() {
-                final Bitmap bitmap = mLoaderConfiguration.mImageCache.getBitmapFromDiskCache(task.getImageUrl());
-                initExecutorsIfNeed();
-                if (null != bitmap && !bitmap.isRecycled()) {
-                    taskExecutorForCachedImages.execute(task);
-                } else {
-                    taskExecutor.execute(task);
+            public void onReceive(Context c, Intent intent) {
+                mConnectionType = NetworkUtils.getConnectionType(context);
+            }
+        }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * @return variants of the urls, see {@link #resolveVariant(String, int, int)}; null if urls is null
+     */
+    List<String> resolveVariants(List<String> urls, int width, int height) {
+        if (null == urls || null == mLoaderConfiguration.mVariantResolver) {
+            return urls;
+        }
+        final List<String> variants = new ArrayList<String>(urls.size());
+        for (String url : urls) {
+            variants.add(resolveVariant(url, width, height));
+        }
+        return variants;
+    }
+
+    /**
+     * @return the loader of a local uri, null if the uri is downloaded
+     */
+    IUriLoader uriLoaderFor(String uri) {
+        if (null == uri) {
+            return null;
+        }
+        for (IUriLoader loader : mLoaderConfiguration.mUriLoaders) {
+            if (loader.canLoad(uri)) {
+                return loader;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param width width the image is shown at, 0 if unknown
+     * @return key the image of the uri is cached and shared under: a data: uri carries the whole image, it is keyed on
+     *         a hash of it; with client hints the server sizes the image by the Width sent, the bucket of the width
+     *         is part of the key
+     */
+    String keyFor(String uri, int width) {
+        if (null == uri) {
+            return null;
+        }
+        if (uri.startsWith(LocalUriLoaders.DataUriLoader.SCHEME)) {
+            return LocalUriLoaders.DataUriLoader.SCHEME + Utils.hashKeyForDisk(uri);
+        }
+        if (!mLoaderConfiguration.mClientHints || null != uriLoaderFor(uri)) {
+            return uri;
+        }
+        return uri + "#w=" + bucket(width, mLoaderConfiguration.mMaxDecodeWidth);
+    }
+
+    /**
+     * Rounds a size up to 64, 96, 128, 192, 256, 384, ...: a variant is at most 1.5 times the size it is shown at,
+     * and views of about the same size share it.
+     */
+    static int bucket(int size) {
+        int bucket = MIN_VARIANT_SIZE;
+        while (bucket < size) {
+            bucket = (bucket & (bucket - 1)) == 0 ? bucket * 3 / 2 : bucket * 4 / 3;
+        }
+        return bucket;
+    }
+
+    /**
+     * @param size size the image is shown at, 0 if unknown
+     * @param max largest size an image is decoded at, taken for an unknown size
+     */
+    static int bucket(int size, int max) {
+        return bucket(size > 0 ? Math.min(size, max) : max);
+    }
+
+    static Priority priorityOf(ImageLoadInfo info) {
+        if (null == info.mDisplayConfig || null == info.mDisplayConfig.getPriority()) {
+            return Priority.NORMAL;
+        }
+        return info.mDisplayConfig.getPriority();
+    }
+
+    /**
+     * Recomputes the priority of a flight from the views still waiting for it and moves its task inside the stage
+     * queue. A flight no view waits for anymore drops to {@link Priority#PREFETCH}.
+     *
+     * @param touched a view was just bound to the flight, in LIFO mode the flight counts as the latest request then
+     */
+    private void reprioritize(ImageLoadFlight flight, boolean touched) {
+        final ImageLoadeRunnable task = flight.getTask();
+        Priority priority = flight.getPriority(this);
+        if (null == priority) {
+            priority = Priority.PREFETCH;
+        }
+        long sequence = task.getSequence();
+        if (touched && mLoaderConfiguration.mTasksProcessingType == QueueProcessingType.LIFO) {
+            sequence = mSequence.incrementAndGet();
+        }
+        if (!task.requestPriority(priority, sequence)) {
+            return;
+        }
+        final ThreadPoolExecutor executor = executorFor(task.getStage());
+        if (executor.getQueue().remove(task)) {
+            task.applyPendingPriority();
+            executor.execute(task);
+        }
+        // else running or already in the queue of its next stage, the priority is taken at its next dispatch
+    }
+
+    /**
+     * Queues the task on the executor of its current stage, or parks it while the worker is paused. The display stage
+     * is not handled here, bitmaps are handed over to the main thread through the Handler of each request.
+     */
+    void dispatch(ImageLoadeRunnable task) {
+        task.applyPendingPriority();
+        if (parkIfPaused(task)) {
+            return;
+        }
+        executorFor(task.getStage()).execute(task);
+    }
+
+    private synchronized ThreadPoolExecutor executorFor(int stage) {
+        initExecutorsIfNeed();
+        switch (stage) {
+            case ImageLoadeRunnable.STAGE_NETWORK:
+                return networkExecutor;
+            case ImageLoadeRunnable.STAGE_DECODE:
+                return decodeExecutor;
+            default:
+                return diskExecutor;
+        }
+    }
+
+    private synchronized void initExecutorsIfNeed() {
+        final ImageLoaderConfiguration config = mLoaderConfiguration;
+        if (null == diskExecutor || diskExecutor.isShutdown()) {
+            diskExecutor = createExecutor("disk", config.mDiskThreadCount, config.mDiskQueueSize);
+        }
+        if (null == networkExecutor || networkExecutor.isShutdown()) {
+            networkExecutor = createExecutor("network", config.mNetworkThreadCount, config.mNetworkQueueSize);
+            if (null != mNetworkLimiter) {
+                AdaptiveConcurrencyLimiter.setPoolSize(networkExecutor, mNetworkLimiter.getLimit());
+            }
+        }
+        if (null == decodeExecutor || decodeExecutor.isShutdown()) {
+            decodeExecutor = createExecutor("decode", config.mDecodeThreadCount, config.mDecodeQueueSize);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.GINGERBREAD)
+    private ThreadPoolExecutor createExecutor(String stage, int threadCount, int queueSize) {
+        final Comparator<Runnable> comparator = new TaskComparator(mLoaderConfiguration.mTasksProcessingType);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME, unit,
+                                                             new StageQueue(queueSize, comparator),
+                                                             new StageThreadFactory(stage),
+                                                             new DiscardLowestTaskPolicy(comparator));
+        if (VersionUtils.hasGingerbread()) {
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Reports the time to first byte of a download to the concurrency limiter of the network stage.
+     *
+     * @param url url of the download, its host has its own latency baseline
+     * @param latencyMillis time from the connection being up to the first byte, so a handshake is not counted
+     */
+    void onNetworkLatency(String url, long latencyMillis) {
+        synchronized (mLatencies) {
+            mLatencies[mLatencyCount++ % LATENCY_SAMPLES] = latencyMillis;
+        }
+        if (null != mNetworkLimiter) {
+            applyNetworkLimit(mNetworkLimiter.onSample(HostSlots.hostOf(url), latencyMillis,
+                                                       SystemClock.uptimeMillis()));
+        }
+    }
+
+    /**
+     * @return the delay after which a download without first bytes is hedged with a mirror, the
+     * {@link #HEDGE_PERCENTILE} of recent times to first byte
+     */
+    long getHedgeDelay() {
+        final long[] latencies;
+        synchronized (mLatencies) {
+            if (mLatencyCount < LATENCY_SAMPLES / 4) {
+                return DEFAULT_HEDGE_DELAY;
+            }
+            latencies = new long[Math.min(mLatencyCount, LATENCY_SAMPLES)];
+            System.arraycopy(mLatencies, 0, latencies, 0, latencies.length);
+        }
+        Arrays.sort(latencies);
+        return latencies[(latencies.length - 1) * HEDGE_PERCENTILE / 100];
+    }
+
+    ImageDownloader getDownloader() {
+        return mDownloader;
+    }
+
+    /**
+     * Gives a connection slot of the host back, and dispatches the next task waiting for the host.
+     */
+    void releaseHost(String host) {
+        final ImageLoadeRunnable next = mDownloader.release(host);
+        if (null != next) {
+            dispatch(next);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.GINGERBREAD)
+    synchronized Executor getHedgeExecutor() {
+        if (null == hedgeExecutor || hedgeExecutor.isShutdown()) {
+            final int threadCount = null != mNetworkLimiter ? mNetworkLimiter.getLimit()
+                                                            : mLoaderConfiguration.mNetworkThreadCount;
+            hedgeExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME, unit,
+                                                   new LinkedBlockingQueue<Runnable>(),
+                                                   new StageThreadFactory("hedge"));
+            if (VersionUtils.hasGingerbread()) {
+                hedgeExecutor.allowCoreThreadTimeOut(true);
+            }
+        }
+        return hedgeExecutor;
+    }
+
+    /**
+     * Revalidates the stale disk cache entry of the task's url in the background, while the task displays it.
+     */
+    void revalidate(ImageLoadeRunnable task) {
+        final String url = task.getImageUrl();
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(url)) {
+                return;
+            }
+        }
+        final ImageLoadeRunnable revalidation = new ImageLoadeRunnable(this, task.getLoadInfo(), null);
+        try {
+            getRevalidateExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        revalidation.revalidate();
+                    } finally {
+                        synchronized (mRevalidating) {
+                            mRevalidating.remove(url);
+                        }
+                    }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "revalidate rejected - " + e);
+            synchronized (mRevalidating) {
+                mRevalidating.remove(url);
             }
-        });
+        }
     }
 
-    public void submit(final DisplayRunnable task) {
-        taskDistributor.execute(new Runnable() {
+    private synchronized Executor getRevalidateExecutor() {
+        if (null == revalidateExecutor || revalidateExecutor.isShutdown()) {
+            revalidateExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME, unit, new LinkedBlockingQueue<Runnable>(),
+                                                        new StageThreadFactory("revalidate"));
+        }
+        return revalidateExecutor;
+    }
 
-            @Override
-            public void run() {
-                initExecutorsIfNeedForDisplay();
-                taskExecutorForDisplay.execute(task);
+    /**
+     * Disconnects the connection of a cancelled download in the background. Cancels come from the main thread, where
+     * closing a connection is network I/O and may block on a TLS close.
+     */
+    void disconnectAsync(final HttpURLConnection connection) {
+        try {
+            getDisconnectExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopped meanwhile, the read loop notices the cancel by itself
+            Log.e(TAG, "disconnect rejected - " + e);
+        }
+    }
+
+    private synchronized Executor getDisconnectExecutor() {
+        if (null == disconnectExecutor || disconnectExecutor.isShutdown()) {
+            disconnectExecutor = new ThreadPoolExecutor(0, 1, KEEP_ALIVE_TIME, unit, new LinkedBlockingQueue<Runnable>(),
+                                                        new StageThreadFactory("disconnect"));
+        }
+        return disconnectExecutor;
+    }
+
+    void onNetworkTimeout() {
+        if (null != mNetworkLimiter) {
+            applyNetworkLimit(mNetworkLimiter.onTimeout(SystemClock.uptimeMillis()));
+        }
+    }
+
+    /**
+     * The size of the network pool is its concurrency. After a cut, idle threads above it finish at once and busy ones
+     * once their download is done; they take no more tasks from the queue.
+     */
+    private synchronized void applyNetworkLimit(int limit) {
+        if (null != networkExecutor && networkExecutor.getMaximumPoolSize() != limit) {
+            Log.d(TAG, "network concurrency " + networkExecutor.getMaximumPoolSize() + " -> " + limit);
+            AdaptiveConcurrencyLimiter.setPoolSize(networkExecutor, limit);
+        }
+        if (null != hedgeExecutor && hedgeExecutor.getMaximumPoolSize() != limit) {
+            AdaptiveConcurrencyLimiter.setPoolSize(hedgeExecutor, limit);
+        }
+    }
+
+    /**
+     * Stage threads run at background priority so they don't compete with the UI thread.
+     */
+    private static class StageThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        private final String        mStage;
+
+        StageThreadFactory(String stage){
+            mStage = stage;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ImageLoader " + mStage + " #" + mCount.getAndIncrement());
+        }
+    }
+
+    /**
+     * Orders tasks by priority first, then by request order: oldest first in FIFO mode, latest first in LIFO mode.
+     */
+    private static class TaskComparator implements Comparator<Runnable> {
+
+        private final boolean mLifo;
+
+        TaskComparator(QueueProcessingType type){
+            mLifo = type == QueueProcessingType.LIFO;
+        }
+
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            final ImageLoadeRunnable l = (ImageLoadeRunnable)lhs;
+            final ImageLoadeRunnable r = (ImageLoadeRunnable)rhs;
+            final int byPriority = l.getPriority().ordinal() - r.getPriority().ordinal();
+            if (byPriority != 0) {
+                return byPriority;
+            }
+            final long ls = l.getSequence();
+            final long rs = r.getSequence();
+            if (ls == rs) {
+                return 0;
             }
-        });
+            return (ls < rs) != mLifo ? -1 : 1;
+        }
     }
 
-    private void initExecutorsIfNeedForDisplay() {
-        if (((ExecutorService)taskExecutorForDisplay).isShutdown()) {
-            taskExecutorForDisplay = createExecutor();
+    /**
+     * Bounded priority queue of a stage, offers beyond the capacity are refused so the rejection policy decides what
+     * to drop. The policy may still grow it past the capacity for tasks which must not be dropped.
+     */
+    private static class StageQueue extends PriorityBlockingQueue<Runnable> {
+
+        private static final long          serialVersionUID = 1L;
+
+        private final int                  mCapacity;
+
+        private final Comparator<Runnable> mComparator;
+
+        StageQueue(int capacity, Comparator<Runnable> comparator){
+            super(capacity, comparator);
+            mCapacity = capacity;
+            mComparator = comparator;
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            if (size() >= mCapacity) {
+                return false;
+            }
+            return super.offer(r);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, mCapacity - size());
+        }
+
+        /** Queues the task regardless of the capacity */
+        boolean offerOverCapacity(Runnable r) {
+            return super.offer(r);
+        }
+
+        /** @return the droppable task which would run last, null if none is queued */
+        Runnable peekLowestDiscardable() {
+            Runnable lowest = null;
+            for (Runnable r : this) {
+                if (isDiscardable(r) && (null == lowest || mComparator.compare(r, lowest) > 0)) {
+                    lowest = r;
+                }
+            }
+            return lowest;
+        }
+    }
+
+    /**
+     * Only prefetches that have not passed a stage yet may be dropped: a request for a view is never lost, and a task
+     * handed over from the previous stage keeps the work already done for it.
+     */
+    static boolean isDiscardable(Runnable r) {
+        if (!(r instanceof ImageLoadeRunnable)) {
+            return false;
+        }
+        final ImageLoadeRunnable task = (ImageLoadeRunnable)r;
+        return task.getPriority() == Priority.PREFETCH && task.getStage() == ImageLoadeRunnable.STAGE_DISK;
+    }
+
+    /**
+     * Drops the lowest-ranked prefetch when a stage queue is full, which may be the incoming one, and tells it so its
+     * flight is cancelled instead of waiting forever. Without a prefetch to drop the queue grows past its capacity.
+     */
+    private static class DiscardLowestTaskPolicy implements RejectedExecutionHandler {
+
+        private final Comparator<Runnable> mComparator;
+
+        DiscardLowestTaskPolicy(Comparator<Runnable> comparator){
+            mComparator = comparator;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                discard(r);
+                return;
+            }
+            // the pool runs all its threads, so queued tasks are picked up
+            final StageQueue queue = (StageQueue)executor.getQueue();
+            final Runnable lowest = queue.peekLowestDiscardable();
+            if (isDiscardable(r) && (null == lowest || mComparator.compare(r, lowest) > 0)) {
+                discard(r);
+                return;
+            }
+            if (null != lowest && queue.remove(lowest)) {
+                discard(lowest);
+            } else {
+                Log.d(TAG, "stage queue full without a prefetch to drop, " + queue.size() + " queued");
+            }
+            queue.offerOverCapacity(r);
+        }
+
+        private static void discard(Runnable r) {
+            if (r instanceof ImageLoadeRunnable) {
+                ((ImageLoadeRunnable)r).onDiscarded();
+            }
         }
     }
 
-    private void initExecutorsIfNeed() {
-        if (((ExecutorService)taskExecutor).isShutdown()) {
-            taskExecutor = createExecutor();
+    /**
+     * Finishes the flight and detaches it from its url, so the next request for that url starts a new fetch.
+     *
+     * @return all targets which were still attached to the flight
+     */
+    List<ImageLoadInfo> finishFlight(ImageLoadFlight flight) {
+        synchronized (mFlights) {
+            if (mFlights.get(flight.getKey()) == flight) {
+                mFlights.remove(flight.getKey());
+            }
+            return flight.finish();
         }
-        if (((ExecutorService)taskExecutorForCachedImages).isShutdown()) {
-            taskExecutorForCachedImages = createExecutor();
+    }
+
+    /**
+     * Detaches the targets of the flight which only need the image in the disk cache, and finishes the flight if no
+     * other target is attached. Both happen in one step, a request attaching meanwhile is not lost.
+     *
+     * @return the detached targets, they should be notified about the completion
+     */
+    List<ImageLoadInfo> finishDiskOnlyTargets(ImageLoadFlight flight) {
+        synchronized (mFlights) {
+            final List<ImageLoadInfo> targets = flight.finishDiskOnlyTargets();
+            if (flight.isFinished() && mFlights.get(flight.getKey()) == flight) {
+                mFlights.remove(flight.getKey());
+            }
+            return targets;
         }
     }
 
-    private Executor createExecutor() {
-        return new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, unit,
-                                      new LinkedBlockingDeque<Runnable>());
+    /**
+     * Finishes the flight if every attached view was reused or collected.
+     *
+     * @return <b>true</b> if the shared fetch should be cancelled
+     */
+    boolean finishFlightIfIdle(ImageLoadFlight flight) {
+        synchronized (mFlights) {
+            if (flight.finishIfIdle()) {
+                if (mFlights.get(flight.getKey()) == flight) {
+                    mFlights.remove(flight.getKey());
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return <b>true</b> if the request was not cancelled and its view is still alive and still waits for the url of
+     * this request
+     */
+    boolean isTargetActual(ImageLoadInfo info) {
+        if (info.isCancelled() || info.mWrappedView.isCollected()) {
+            return false;
+        }
+        if (info.mWrappedView instanceof NonViewAware) {
+            // not bound to any view, stays actual until cancelled
+            return true;
+        }
+        return info.mObject.equals(getLoadingUriForView(info.mWrappedView));
     }
 
     public String getLoadingUriForView(ImageAware imageAware) {
-        return cacheKeysForImageAwares.get(imageAware.getId());
+        return cacheKeysForImageAwares.get(imageAware);
     }
 
     public void prepareDisplayTaskFor(ImageAware imageAware, String memoryCacheKey) {
-        cacheKeysForImageAwares.put(imageAware.getId(), memoryCacheKey);
+        final String previous = cacheKeysForImageAwares.put(imageAware, memoryCacheKey);
+        if (null != previous && !previous.equals(memoryCacheKey)) {
+            // the view was rebound, the flight it waited for may have lost its last target
+            releaseFlight(previous);
+        }
     }
 
     public void cancelDisplayTaskFor(ImageAware imageAware) {
-        cacheKeysForImageAwares.remove(imageAware.getId());
+        if (imageAware instanceof NonViewAware) {
+            return;
+        }
+        final String previous = cacheKeysForImageAwares.remove(imageAware);
+        if (null != previous) {
+            releaseFlight(previous);
+        }
+    }
+
+    /**
+     * Cancels a single request, see {@link ImageLoadHandle#cancel()}.
+     */
+    void cancel(ImageLoadInfo info) {
+        if (!info.markCancelled()) {
+            return;
+        }
+        if (!(info.mWrappedView instanceof NonViewAware)) {
+            // only unbinds the view if it was not rebound meanwhile
+            cacheKeysForImageAwares.remove(info.mWrappedView, info.mObject);
+        }
+        final ImageLoadFlight flight = info.getFlight();
+        if (null != flight && flight.detach(info)) {
+            flight.getTask().fireCancelEvent(Collections.singletonList(info));
+            releaseFlight(flight);
+        }
+    }
+
+    private void releaseFlight(String url) {
+        synchronized (mFlights) {
+            final ImageLoadFlight flight = mFlights.get(url);
+            if (null != flight) {
+                releaseFlight(flight);
+            }
+        }
+    }
+
+    /**
+     * Detaches views which don't wait for the flight anymore. The flight is cancelled when none is left, its task is
+     * removed from the stage queue or aborted while running; otherwise it is re-prioritised for the remaining views.
+     */
+    private void releaseFlight(ImageLoadFlight flight) {
+        final ImageLoadeRunnable task = flight.getTask();
+        synchronized (mFlights) {
+            task.fireCancelEvent(flight.pruneTargets(this));
+            if (finishFlightIfIdle(flight)) {
+                Log.d(TAG, "cancel the loading task of " + flight.getKey());
+                task.cancel();
+                executorFor(task.getStage()).getQueue().remove(task);
+                unpark(task);
+            } else if (!flight.isFinished()) {
+                reprioritize(flight, false);
+            }
+        }
     }
 
-    private AtomicBoolean mPuseWork  = new AtomicBoolean(false);
-    private final Object  mPauseLock = new Object();
+    private AtomicBoolean                  mPuseWork    = new AtomicBoolean(false);
+
+    /** Tasks which reached a stage boundary while paused, they hold no thread until resumed */
+    private final List<ImageLoadeRunnable> mParkedTasks = new ArrayList<ImageLoadeRunnable>();
 
-    // TODO
+    /**
+     * Re-dispatches parked tasks. Flights whose views were reused or collected during the pause are cancelled
+     * instead.
+     */
     public void onResume() {
-        mPuseWork.set(false);
-        synchronized (mPauseLock) {
-            mPauseLock.notifyAll();
+        synchronized (mParkedTasks) {
+            mPuseWork.set(false);
         }
+        resumeParked();
     }
 
-    // TODO
+    /**
+     * Re-dispatches the parked tasks once the worker is not paused. Tasks whose requests all belong to paused scopes
+     * are parked again right away.
+     */
+    void resumeParked() {
+        final List<ImageLoadeRunnable> parked;
+        synchronized (mParkedTasks) {
+            if (mPuseWork.get() || mParkedTasks.isEmpty()) {
+                return;
+            }
+            parked = new ArrayList<ImageLoadeRunnable>(mParkedTasks);
+            mParkedTasks.clear();
+        }
+        Log.d(TAG, "resume " + parked.size() + " parked tasks");
+        for (ImageLoadeRunnable task : parked) {
+            if (task.isCancelled()) {
+                continue;
+            }
+            final ImageLoadFlight flight = task.getFlight();
+            releaseFlight(flight);
+            if (!flight.isFinished()) {
+                dispatch(task);
+            }
+        }
+    }
+
+    /**
+     * Stops handing tasks to the stage threads. Running stages finish, queued tasks are parked when they come up;
+     * memory cache hits are still served by {@link ImageLoader}.
+     */
     public void onPause() {
-        mPuseWork.set(true);
+        synchronized (mParkedTasks) {
+            mPuseWork.set(true);
+        }
     }
 
     public AtomicBoolean getIsPauseWork() {
         return mPuseWork;
     }
 
-    public Object getPauseLock() {
-        return mPauseLock;
+    /**
+     * @return <b>true</b> if the worker or the scopes of all requests of the task are paused, and the task was parked
+     */
+    boolean parkIfPaused(ImageLoadeRunnable task) {
+        final ImageLoadFlight flight = task.getFlight();
+        synchronized (mParkedTasks) {
+            // checked under the lock, so a scope resumed meanwhile finds the task parked already
+            if (!mPuseWork.get() && (null == flight || !flight.isScopePaused(this))) {
+                return false;
+            }
+            mParkedTasks.add(task);
+            return true;
+        }
+    }
+
+    private boolean isParked(ImageLoadeRunnable task) {
+        synchronized (mParkedTasks) {
+            return mParkedTasks.contains(task);
+        }
+    }
+
+    private void unpark(ImageLoadeRunnable task) {
+        synchronized (mParkedTasks) {
+            mParkedTasks.remove(task);
+        }
+        mDownloader.remove(task);
+    }
+
+    /**
+     * Serialises downloads of the same url. Only the locks of urls in use are kept, so the table does not grow with
+     * every url ever loaded.
+     *
+     * @return the lock taken, to be passed to {@link #unlockUri(String, UriLock)}
+     */
+    UriLock lockUri(String uri) {
+        for (;;) {
+            UriLock lock = uriLocks.get(uri);
+            if (null == lock) {
+                final UriLock created = new UriLock();
+                lock = uriLocks.putIfAbsent(uri, created);
+                if (null == lock) {
+                    lock = created;
+                }
+            }
+            if (lock.retain()) {
+                lock.lock();
+                return lock;
+            }
+            // released by its last holder meanwhile, a new one replaces it
+            uriLocks.remove(uri, lock);
+        }
+    }
+
+    /**
+     * @param lock the lock {@link #lockUri(String)} returned; it is unlocked even if the table was cleared meanwhile
+     */
+    void unlockUri(String uri, UriLock lock) {
+        lock.unlock();
+        if (lock.release()) {
+            uriLocks.remove(uri, lock);
+        }
     }
 
-    ReentrantLock getLockForUri(String uri) {
-        ReentrantLock lock = uriLocks.get(uri);
-        if (lock == null) {
-            lock = new ReentrantLock();
-            uriLocks.put(uri, lock);
+    /**
+     * Lock counting its holders and waiters, it is dropped from the table by the last one.
+     */
+    static class UriLock extends ReentrantLock {
+
+        private static final long   serialVersionUID = 1L;
+
+        /** Holders and waiters, -1 once dropped */
+        private final AtomicInteger mUsers           = new AtomicInteger();
+
+        boolean retain() {
+            for (;;) {
+                final int users = mUsers.get();
+                if (users < 0) {
+                    return false;
+                }
+                if (mUsers.compareAndSet(users, users + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /** @return <b>true</b> if this was the last user and the lock must be dropped from the table */
+        boolean release() {
+            return mUsers.decrementAndGet() == 0 && mUsers.compareAndSet(0, -1);
         }
-        return lock;
     }
 
+    /**
+     * Shuts the executors down and forgets every request. Only meant for shutting the loader down, screens pause and
+     * cancel their own requests through an {@link ImageRequestScope}.
+     */
     public void stop() {
-        ((ExecutorService)taskExecutor).shutdownNow();
-        ((ExecutorService)taskExecutorForCachedImages).shutdownNow();
+        // flights are locked before the executors elsewhere, so don't hold both here
+        synchronized (this) {
+            diskExecutor.shutdownNow();
+            networkExecutor.shutdownNow();
+            decodeExecutor.shutdownNow();
+            if (null != hedgeExecutor) {
+                hedgeExecutor.shutdownNow();
+            }
+            if (null != revalidateExecutor) {
+                revalidateExecutor.shutdownNow();
+            }
+            if (null != disconnectExecutor) {
+                // pending disconnects still run, they close connections of cancelled downloads
+                disconnectExecutor.shutdown();
+            }
+        }
         cacheKeysForImageAwares.clear();
         uriLocks.clear();
+        mDownloader.clear();
+        synchronized (mParkedTasks) {
+            mParkedTasks.clear();
+        }
+        synchronized (mFlights) {
+            mFlights.clear();
+        }
     }
 }
@@ -0,0 +1,158 @@
+package com.android.library.images;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.android.library.images.aware.ImageWrappedView;
+import com.android.library.inf.IImageLoadCallback;
+
+/**
+ * Requests of one screen, e.g. an Activity or a Fragment. Pausing, resuming or cancelling a scope only touches its own
+ * requests; the executors and caches are shared with every other scope and stay warm.
+ * <p>
+ * Create it with {@link ImageLoader#newRequestScope()} and call {@link #pause()}, {@link #resume()} and
+ * {@link #cancel()} from onPause, onResume and onDestroy of the screen. A load shared with a request of another scope
+ * keeps running as long as that request waits for it.
+ */
+public class ImageRequestScope {
+
+    private static final String            TAG       = "ImageRequestScope";
+
+    /** Urls remembered for {@link #evict()}, older ones have most likely left the memory cache already */
+    static final int                       MAX_URLS  = 256;
+
+    private final ImageLoader              mImageLoader;
+
+    private final ImageLoaderWorker        mWorker;
+
+    private final ImageLoaderConfiguration mLoaderConfiguration;
+
+    /** Requests which may still be loading, finished ones are dropped as new ones come in */
+    private final List<ImageLoadInfo>      mRequests = new ArrayList<ImageLoadInfo>();
+
+    /** Urls requested through this scope since the last {@link #evict()}, the most recent {@link #MAX_URLS} */
+    private final Map<String, Boolean>     mUrls     = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_URLS;
+        }
+    };
+
+    private volatile boolean               mPaused;
+
+    ImageRequestScope(ImageLoader imageLoader, ImageLoaderWorker worker, ImageLoaderConfiguration loaderConfiguration){
+        mImageLoader = imageLoader;
+        mWorker = worker;
+        mLoaderConfiguration = loaderConfiguration;
+    }
+
+    public ImageLoadHandle displayImage(ImageView imageView, String url) {
+        return displayImage(mImageLoader.wrap(imageView), url, null, null);
+    }
+
+    /**
+     * @see ImageLoader#displayImage(ImageWrappedView, String, DisplayConfiguration, IImageLoadCallback)
+     */
+    public ImageLoadHandle displayImage(ImageWrappedView imageView, String url,
+                                        DisplayConfiguration displayConfiguration, IImageLoadCallback callback) {
+        return mImageLoader.displayImage(imageView, url, null, displayConfiguration, callback, this);
+    }
+
+    /**
+     * @see ImageLoader#loadBitmap(String, int, int)
+     */
+    public ImageLoadFuture loadBitmap(String url, int width, int height) {
+        return mImageLoader.loadBitmap(url, width, height, this);
+    }
+
+    /**
+     * Stops handing the loads of this scope to the stage threads. Running stages finish, the loads are parked at the
+     * next stage boundary. Memory cache hits are still displayed.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * Continues the loads parked by {@link #pause()}, unless the whole loader is paused.
+     */
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        mWorker.resumeParked();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Cancels every request of this scope which is still loading. The scope can be used again afterwards.
+     */
+    public void cancel() {
+        final List<ImageLoadInfo> requests;
+        synchronized (this) {
+            requests = new ArrayList<ImageLoadInfo>(mRequests);
+            mRequests.clear();
+        }
+        Log.d(TAG, "cancel " + requests.size() + " requests");
+        for (ImageLoadInfo info : requests) {
+            info.cancel();
+        }
+    }
+
+    /**
+     * Drops the bitmaps of the last {@link #MAX_URLS} urls requested through this scope from the memory cache, e.g.
+     * when the user leaves the screen. They are kept in the disk cache; bitmaps still shown by views stay valid, they
+     * are only not shared anymore.
+     */
+    public void evict() {
+        final List<String> urls;
+        synchronized (this) {
+            urls = new ArrayList<String>(mUrls.keySet());
+            mUrls.clear();
+        }
+        Log.d(TAG, "evict " + urls.size() + " bitmaps");
+        for (String url : urls) {
+            mLoaderConfiguration.mImageCache.removeBitmapFromMemoCache(url);
+        }
+    }
+
+    /**
+     * @param info the load, null if the request was served from the memory cache
+     */
+    synchronized void track(String url, ImageLoadInfo info) {
+        mUrls.put(url, Boolean.TRUE);
+        if (null == info) {
+            return;
+        }
+        pruneRequests();
+        mRequests.add(info);
+    }
+
+    /**
+     * @return <b>true</b> if the scope is not paused and holds no request which is still loading; urls to evict don't
+     *         count
+     */
+    synchronized boolean isIdle() {
+        pruneRequests();
+        return !mPaused && mRequests.isEmpty();
+    }
+
+    private void pruneRequests() {
+        for (Iterator<ImageLoadInfo> i = mRequests.iterator(); i.hasNext();) {
+            if (i.next().isDone()) {
+                i.remove();
+            }
+        }
+    }
+}
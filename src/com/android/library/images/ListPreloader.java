@@ -0,0 +1,242 @@
+package com.android.library.images;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+/**
+ * Loads the images of the rows about to scroll into view ahead of time. It follows scroll direction and velocity:
+ * look-ahead work is cancelled when the direction reverses, and the list's own requests are paused while it flings
+ * faster than images could be shown anyway. Only requests with the {@link #getPauseTag() pause tag} are paused, other
+ * lists and screens keep loading.
+ * <p>
+ * Set it as the {@link AbsListView.OnScrollListener} of a list. Other lists (RecyclerView) call
+ * {@link #onScrollStateChanged(int)} and {@link #onScrolled(int, int, int)} from their own scroll listener.
+ */
+public class ListPreloader implements AbsListView.OnScrollListener {
+
+    /**
+     * Supplies the image urls of a row.
+     */
+    public interface PreloadModelProvider {
+
+        /** @return urls shown by the row at position, null or empty if none */
+        List<String> getPreloadUrls(int position);
+    }
+
+    public static final int            DEFAULT_MAX_PRELOAD   = 6;
+
+    /** Rows per second above which decoding is suspended */
+    public static final float          DEFAULT_FLING_VELOCITY = 40f;
+
+    private final ImageLoader          mImageLoader;
+
+    private final PreloadModelProvider mProvider;
+
+    private final int                  mMaxPreload;
+
+    private final PrefetchOptions      mOptions;
+
+    private float                      mFlingVelocity         = DEFAULT_FLING_VELOCITY;
+
+    private AbsListView.OnScrollListener mDelegate;
+
+    /** Look-ahead loads of all scroll steps, created with the first one */
+    private PrefetchGroup              mGroup;
+
+    /** Tag paused while the list flings */
+    private Object                     mPauseTag              = this;
+
+    private int                        mScrollState           = SCROLL_STATE_IDLE;
+
+    private int                        mLastFirstVisible      = -1;
+
+    private long                       mLastScrollTime;
+
+    private boolean                    mScrollingDown         = true;
+
+    /** Positions up to this one (or down to it while scrolling up) were already requested */
+    private int                        mLastPreloaded         = -1;
+
+    private boolean                    mSuspended;
+
+    /**
+     * @param maxPreload rows to load ahead of the visible ones
+     * @param targetWidth decode width of the preloaded images, usually the width of the row's image view
+     * @param targetHeight decode height of the preloaded images
+     */
+    public ListPreloader(ImageLoader imageLoader, PreloadModelProvider provider, int maxPreload, int targetWidth,
+                         int targetHeight){
+        mImageLoader = imageLoader;
+        mProvider = provider;
+        mMaxPreload = maxPreload;
+        mOptions = new PrefetchOptions.Builder().setWarmMemoryCache(targetWidth, targetHeight).build();
+    }
+
+    public ListPreloader(ImageLoader imageLoader, PreloadModelProvider provider, int targetWidth, int targetHeight){
+        this(imageLoader, provider, DEFAULT_MAX_PRELOAD, targetWidth, targetHeight);
+    }
+
+    /** Listener which still receives the scroll events, a list only takes one */
+    public void setOnScrollListener(AbsListView.OnScrollListener delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * @param rowsPerSecond scroll velocity above which the list's requests are paused, until it slows down or stops
+     */
+    public void setFlingVelocity(float rowsPerSecond) {
+        mFlingVelocity = rowsPerSecond;
+    }
+
+    /**
+     * @return tag to set on the display configuration of the list's requests, see
+     *         {@link DisplayConfiguration.Builder#setTag(Object)}; the preloader itself unless one was set
+     */
+    public Object getPauseTag() {
+        return mPauseTag;
+    }
+
+    /**
+     * Pauses the requests of an existing tag while the list flings instead, e.g. the tag of the screen.
+     */
+    public void setPauseTag(Object tag) {
+        if (mSuspended) {
+            mImageLoader.resumeTag(mPauseTag);
+            mImageLoader.pauseTag(tag);
+        }
+        mPauseTag = tag;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        onScrollStateChanged(scrollState);
+        if (null != mDelegate) {
+            mDelegate.onScrollStateChanged(view, scrollState);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        onScrolled(firstVisibleItem, visibleItemCount, totalItemCount);
+        if (null != mDelegate) {
+            mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+        }
+    }
+
+    /**
+     * @param scrollState one of the {@link AbsListView.OnScrollListener} SCROLL_STATE constants
+     */
+    public void onScrollStateChanged(int scrollState) {
+        mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_IDLE) {
+            resumeLoader();
+        }
+    }
+
+    public void onScrolled(int firstVisible, int visibleCount, int totalCount) {
+        final long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible < 0 || firstVisible == mLastFirstVisible) {
+            if (mLastFirstVisible < 0) {
+                mLastFirstVisible = firstVisible;
+                mLastScrollTime = now;
+                preload(firstVisible, visibleCount, totalCount);
+            }
+            return;
+        }
+
+        final int delta = firstVisible - mLastFirstVisible;
+        final long elapsed = Math.max(1, now - mLastScrollTime);
+        final float velocity = Math.abs(delta) * 1000f / elapsed;
+        mLastFirstVisible = firstVisible;
+        mLastScrollTime = now;
+
+        final boolean scrollingDown = delta > 0;
+        if (scrollingDown != mScrollingDown) {
+            // direction reversed, the look-ahead on the other side is not needed anymore
+            mScrollingDown = scrollingDown;
+            cancelPreloads();
+        }
+
+        if (mScrollState == SCROLL_STATE_FLING && velocity > mFlingVelocity) {
+            if (!mSuspended) {
+                mSuspended = true;
+                cancelPreloads();
+                mImageLoader.pauseTag(mPauseTag);
+            }
+            return;
+        }
+        resumeLoader();
+        preload(firstVisible, visibleCount, totalCount);
+    }
+
+    /**
+     * Cancels all look-ahead work, e.g. when the list's data set changes.
+     */
+    public void cancelPreloads() {
+        if (null != mGroup) {
+            mGroup.clear();
+        }
+        mLastPreloaded = -1;
+    }
+
+    private void resumeLoader() {
+        if (mSuspended) {
+            mSuspended = false;
+            mImageLoader.resumeTag(mPauseTag);
+        }
+    }
+
+    private void preload(int firstVisible, int visibleCount, int totalCount) {
+        int from;
+        int to;
+        if (mScrollingDown) {
+            from = firstVisible + visibleCount;
+            to = Math.min(totalCount, from + mMaxPreload);
+            if (mLastPreloaded >= from) {
+                from = mLastPreloaded + 1;
+            }
+        } else {
+            to = firstVisible;
+            from = Math.max(0, to - mMaxPreload);
+            if (mLastPreloaded >= 0 && mLastPreloaded < to) {
+                to = mLastPreloaded;
+            }
+        }
+        if (from >= to) {
+            return;
+        }
+
+        final List<String> urls = new ArrayList<String>();
+        if (mScrollingDown) {
+            for (int position = from; position < to; position++) {
+                addUrls(urls, position);
+            }
+            mLastPreloaded = to - 1;
+        } else {
+            // nearest rows first
+            for (int position = to - 1; position >= from; position--) {
+                addUrls(urls, position);
+            }
+            mLastPreloaded = from;
+        }
+
+        if (urls.isEmpty()) {
+            return;
+        }
+        if (null == mGroup) {
+            mGroup = mImageLoader.prefetch(urls, mOptions);
+        } else {
+            mGroup.add(urls);
+        }
+    }
+
+    private void addUrls(List<String> urls, int position) {
+        final List<String> rowUrls = mProvider.getPreloadUrls(position);
+        if (null != rowUrls) {
+            urls.addAll(rowUrls);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.android.library.images;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Base64;
+
+import com.android.library.inf.IUriLoader;
+
+/**
+ * Loaders of local images: file://, content://, assets://, drawable:// (followed by the resource id) and data: uris.
+ * Files and content providers are decoded from their file descriptor, assets and drawables from a stream opened once
+ * for the bounds and once for the pixels, data: uris from their payload decoded once.
+ */
+public final class LocalUriLoaders {
+
+    private LocalUriLoaders(){
+    }
+
+    /**
+     * @return the built-in loaders, see {@link ImageLoaderConfiguration.Builder#addUriLoader(IUriLoader)}
+     */
+    public static List<IUriLoader> all() {
+        final List<IUriLoader> loaders = new ArrayList<IUriLoader>();
+        loaders.add(new FileUriLoader());
+        loaders.add(new ContentUriLoader());
+        loaders.add(new AssetUriLoader());
+        loaders.add(new DrawableUriLoader());
+        loaders.add(new DataUriLoader());
+        return loaders;
+    }
+
+    public static class FileUriLoader implements IUriLoader {
+
+        public static final String SCHEME = "file://";
+
+        @Override
+        public boolean canLoad(String uri) {
+            return uri.startsWith(SCHEME);
+        }
+
+        @Override
+        public Bitmap decode(Context context, String uri, int reqWidth, int reqHeight,
+                             BitmapFactory.Options options) throws IOException {
+            final FileInputStream in = new FileInputStream(Uri.parse(uri).getPath());
+            try {
+                return ImageDecodeRunnable.decodeSampledBitmapFromDescriptor(in.getFD(), reqWidth, reqHeight, options);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    public static class ContentUriLoader implements IUriLoader {
+
+        public static final String SCHEME = "content://";
+
+        @Override
+        public boolean canLoad(String uri) {
+            return uri.startsWith(SCHEME);
+        }
+
+        @Override
+        public Bitmap decode(Context context, String uri, int reqWidth, int reqHeight,
+                             BitmapFactory.Options options) throws IOException {
+            final ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(Uri.parse(uri),
+                                                                                                     "r");
+            if (null == descriptor) {
+                throw new FileNotFoundException(uri);
+            }
+            try {
+                return ImageDecodeRunnable.decodeSampledBitmapFromDescriptor(descriptor.getFileDescriptor(), reqWidth,
+                                                                             reqHeight, options);
+            } finally {
+                descriptor.close();
+            }
+        }
+    }
+
+    /**
+     * Sources without a file descriptor of their own, the stream is opened twice.
+     */
+    public abstract static class StreamUriLoader implements IUriLoader {
+
+        protected abstract InputStream open(Context context, String uri) throws IOException;
+
+        @Override
+        public Bitmap decode(Context context, String uri, int reqWidth, int reqHeight,
+                             BitmapFactory.Options options) throws IOException {
+            options.inJustDecodeBounds = true;
+            decodeStream(context, uri, options);
+            if (options.mCancel) {
+                return null;
+            }
+            options.inSampleSize = ImageLoadeRunnable.calculateInSampleSize(options, reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+            return decodeStream(context, uri, options);
+        }
+
+        private Bitmap decodeStream(Context context, String uri, BitmapFactory.Options options) throws IOException {
+            final InputStream in = open(context, uri);
+            try {
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    public static class AssetUriLoader extends StreamUriLoader {
+
+        public static final String SCHEME = "assets://";
+
+        @Override
+        public boolean canLoad(String uri) {
+            return uri.startsWith(SCHEME);
+        }
+
+        @Override
+        protected InputStream open(Context context, String uri) throws IOException {
+            return context.getAssets().open(uri.substring(SCHEME.length()));
+        }
+    }
+
+    public static class DrawableUriLoader extends StreamUriLoader {
+
+        public static final String SCHEME = "drawable://";
+
+        @Override
+        public boolean canLoad(String uri) {
+            return uri.startsWith(SCHEME);
+        }
+
+        /** The raw resource is decoded, it is not scaled to the display density */
+        @Override
+        protected InputStream open(Context context, String uri) throws IOException {
+            try {
+                return context.getResources().openRawResource(Integer.parseInt(uri.substring(SCHEME.length())));
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException(uri);
+            }
+        }
+    }
+
+    /**
+     * data:[&lt;media type&gt;][;base64],&lt;data&gt;
+     */
+    public static class DataUriLoader implements IUriLoader {
+
+        public static final String SCHEME = "data:";
+
+        @Override
+        public boolean canLoad(String uri) {
+            return uri.startsWith(SCHEME);
+        }
+
+        /** The payload is decoded once, the bounds and the pixels are read from the same bytes */
+        @Override
+        public Bitmap decode(Context context, String uri, int reqWidth, int reqHeight,
+                             BitmapFactory.Options options) throws IOException {
+            final byte[] bytes = payload(uri);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            if (options.mCancel) {
+                return null;
+            }
+            options.inSampleSize = ImageLoadeRunnable.calculateInSampleSize(options, reqWidth, reqHeight);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+
+        private static byte[] payload(String uri) throws IOException {
+            final int comma = uri.indexOf(',');
+            if (comma < 0) {
+                throw new IOException("malformed data uri");
+            }
+            final String data = uri.substring(comma + 1);
+            final byte[] bytes;
+            try {
+                bytes = uri.substring(0, comma).endsWith(";base64") ? Base64.decode(data, Base64.DEFAULT)
+                                                                    : percentDecode(data);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("malformed data uri: " + e.getMessage());
+            }
+            return bytes;
+        }
+
+        /** Decodes %XX escapes to the bytes they stand for, other characters are taken as they are */
+        private static byte[] percentDecode(String data) throws IOException {
+            final byte[] bytes = data.getBytes("ISO-8859-1");
+            int length = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '%' && i + 2 < bytes.length) {
+                    final int high = Character.digit(bytes[i + 1], 16);
+                    final int low = Character.digit(bytes[i + 2], 16);
+                    if (high >= 0 && low >= 0) {
+                        bytes[length++] = (byte)((high << 4) | low);
+                        i += 2;
+                        continue;
+                    }
+                }
+                bytes[length++] = bytes[i];
+            }
+            final byte[] decoded = new byte[length];
+            System.arraycopy(bytes, 0, decoded, 0, length);
+            return decoded;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.android.library.images;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.util.Log;
+
+import com.android.library.cache.DiskLruCache;
+
+/**
+ * Bytes of an interrupted download, kept next to the disk cache so a later attempt continues with a Range request
+ * instead of starting over. Only downloads with a validator (ETag or Last-Modified) and a known length are kept, and
+ * only the few latest ones, the partial files don't count against the size of the disk cache.
+ */
+class PartialDownload {
+
+    private static final String TAG          = "PartialDownload";
+
+    /** Smaller downloads are cheap to repeat */
+    static final long           MIN_LENGTH   = 128 * 1024;
+
+    private static final int    MAX_PARTIALS = 8;
+
+    private static final String DIRECTORY    = "partial";
+
+    private static final String META_SUFFIX  = ".meta";
+
+    private final File          mDirectory;
+
+    private final File          mFile;
+
+    private final File          mMetaFile;
+
+    private String              mValidator;
+
+    private long                mTotalLength;
+
+    /**
+     * @param cacheDirectory directory of the disk cache the download is written to
+     * @param key disk cache key of the image
+     */
+    PartialDownload(File cacheDirectory, String key){
+        mDirectory = new File(cacheDirectory, DIRECTORY);
+        mFile = new File(mDirectory, key);
+        mMetaFile = new File(mDirectory, key + META_SUFFIX);
+    }
+
+    /**
+     * @return <b>true</b> if bytes of an earlier attempt were found, the download can continue at {@link #getOffset()}
+     */
+    boolean load() {
+        if (!mFile.exists() || !mMetaFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mMetaFile), "UTF-8"));
+            mValidator = reader.readLine();
+            mTotalLength = Long.parseLong(reader.readLine());
+        } catch (IOException e) {
+            Log.e(TAG, "load - " + e);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "load - " + e);
+        } finally {
+            closeQuietly(reader);
+        }
+        final long offset = mFile.length();
+        if (null == mValidator || mValidator.length() == 0 || offset <= 0 || offset >= mTotalLength) {
+            delete();
+            return false;
+        }
+        return true;
+    }
+
+    long getOffset() {
+        return mFile.length();
+    }
+
+    String getValidator() {
+        return mValidator;
+    }
+
+    long getTotalLength() {
+        return mTotalLength;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Takes the bytes written so far out of the edit, which must be aborted afterwards.
+     *
+     * @param validator ETag or Last-Modified of the response, sent back in If-Range
+     * @param totalLength length of the complete image
+     */
+    void save(DiskLruCache.Editor editor, int index, String validator, long totalLength) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return;
+        }
+        if (!editor.detach(index, mFile)) {
+            return;
+        }
+        final long offset = mFile.length();
+        if (offset < MIN_LENGTH || offset >= totalLength) {
+            delete();
+            return;
+        }
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mMetaFile), "UTF-8"));
+            writer.write(validator);
+            writer.write('\n');
+            writer.write(Long.toString(totalLength));
+            writer.write('\n');
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            Log.e(TAG, "save - " + e);
+            closeQuietly(writer);
+            delete();
+            return;
+        }
+        Log.d(TAG, "kept " + offset + " of " + totalLength + " bytes");
+        trim();
+    }
+
+    void delete() {
+        mFile.delete();
+        mMetaFile.delete();
+    }
+
+    /** Drops the oldest partial downloads beyond {@link #MAX_PARTIALS} */
+    private void trim() {
+        final File[] files = mDirectory.listFiles();
+        if (null == files) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        int kept = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(META_SUFFIX)) {
+                continue;
+            }
+            if (++kept > MAX_PARTIALS) {
+                file.delete();
+                new File(mDirectory, file.getName() + META_SUFFIX).delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (null == closeable) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.android.library.images;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+
+import com.android.library.images.DisplayConfiguration.Priority;
+import com.android.library.images.aware.NonViewAware;
+import com.android.library.inf.IImageLoadCallback;
+
+/**
+ * A batch of urls loaded ahead of time at {@link Priority#PREFETCH}. Only a limited number of loads runs at once and no
+ * new url is started once the byte budget is used up. Cancelling the group cancels all of its outstanding loads.
+ * <p>
+ * A load dropped from a full stage queue is not taken for done: the group stops dispatching and tries the url again
+ * after {@link #RETRY_DELAY_MS}.
+ */
+public class PrefetchGroup {
+
+    private static final String            TAG       = "PrefetchGroup";
+
+    /** Delay before dispatching again after a load was dropped from a full stage queue */
+    static final long                      RETRY_DELAY_MS = 500;
+
+    private static final Handler           RETRY_HANDLER  = new Handler(Looper.getMainLooper());
+
+    private final ImageLoaderWorker        mWorker;
+
+    private final ImageLoaderConfiguration mLoaderConfiguration;
+
+    private final DisplayConfiguration     mDisplayConfiguration;
+
+    private final PrefetchOptions          mOptions;
+
+    private final List<String>             mUrls;
+
+    private final List<ImageLoadInfo>      mRunning  = new ArrayList<ImageLoadInfo>();
+
+    private int                            mNext;
+
+    private long                           mLoadedBytes;
+
+    private boolean                        mCancelled;
+
+    /** A load was dropped, nothing is dispatched until the retry runs */
+    private boolean                        mRetryPending;
+
+    private final Runnable                 mRetry    = new Runnable() {
+
+                                                         @Override
+                                                         public void run() {
+                                                             synchronized (PrefetchGroup.this) {
+                                                                 mRetryPending = false;
+                                                             }
+                                                             dispatchNext();
+                                                         }
+                                                     };
+
+    PrefetchGroup(ImageLoaderWorker worker, ImageLoaderConfiguration loaderConfiguration, List<String> urls,
+                  PrefetchOptions options){
+        mWorker = worker;
+        mLoaderConfiguration = loaderConfiguration;
+        mUrls = new ArrayList<String>(urls);
+        mOptions = options;
+        mDisplayConfiguration = new DisplayConfiguration.Builder(loaderConfiguration.mContext, null).setPriority(Priority.PREFETCH)
+                                                                                                     .builder();
+    }
+
+    void start() {
+        dispatchNext();
+    }
+
+    /**
+     * Queues more urls behind the ones not started yet, e.g. the next rows of a list. Urls already started are
+     * forgotten, so a group which is fed for long doesn't grow.
+     */
+    void add(List<String> urls) {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mUrls.subList(0, mNext).clear();
+            mNext = 0;
+            mUrls.addAll(urls);
+        }
+        dispatchNext();
+    }
+
+    /**
+     * Cancels the running loads and drops the urls not started yet, unlike {@link #cancel()} the group takes new
+     * urls afterwards.
+     */
+    void clear() {
+        final List<ImageLoadInfo> running;
+        synchronized (this) {
+            running = new ArrayList<ImageLoadInfo>(mRunning);
+            mRunning.clear();
+            mUrls.clear();
+            mNext = 0;
+            mRetryPending = false;
+        }
+        RETRY_HANDLER.removeCallbacks(mRetry);
+        for (ImageLoadInfo info : running) {
+            info.cancel();
+        }
+    }
+
+    /**
+     * Cancels the loads of the group which are still running, urls not started yet are dropped.
+     */
+    public void cancel() {
+        final List<ImageLoadInfo> running;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            running = new ArrayList<ImageLoadInfo>(mRunning);
+            mRunning.clear();
+        }
+        RETRY_HANDLER.removeCallbacks(mRetry);
+        for (ImageLoadInfo info : running) {
+            info.cancel();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** @return <b>true</b> once every url was loaded or skipped */
+    public synchronized boolean isDone() {
+        return mCancelled || (mRunning.isEmpty() && (mNext >= mUrls.size() || mLoadedBytes >= mOptions.mMaxBytes));
+    }
+
+    public synchronized long getLoadedBytes() {
+        return mLoadedBytes;
+    }
+
+    private void dispatchNext() {
+        while (true) {
+            final ImageLoadInfo info;
+            synchronized (this) {
+                if (mCancelled || mRetryPending || mRunning.size() >= mOptions.mMaxConcurrency
+                    || mNext >= mUrls.size() || mLoadedBytes >= mOptions.mMaxBytes) {
+                    return;
+                }
+                final String requested = mUrls.get(mNext++);
+                final String source = mWorker.resolveVariant(requested, mOptions.mTargetWidth,
+                                                             mOptions.mTargetHeight);
+                final String url = mWorker.keyFor(source, mOptions.mTargetWidth);
+                if (isCached(url)) {
+                    continue;
+                }
+                final PrefetchCallback callback = new PrefetchCallback(requested);
+                info = new ImageLoadInfo(mWorker, mLoaderConfiguration, new NonViewAware(mOptions.mTargetWidth,
+                                                                                         mOptions.mTargetHeight), url,
+                                         mDisplayConfiguration, callback, null);
+                callback.mInfo = info;
+                if (!url.equals(source)) {
+                    info.mSource = source;
+                }
+                info.mDiskCacheOnly = !mOptions.mWarmMemoryCache;
+                mRunning.add(info);
+            }
+            Log.d(TAG, "prefetch " + info.mObject);
+            mWorker.submit(info);
+        }
+    }
+
+    private boolean isCached(String url) {
+        if (mOptions.mWarmMemoryCache) {
+            return null != mLoaderConfiguration.mImageCache.getBitmapFromMemoCache(url);
+        }
+        return mLoaderConfiguration.mImageCache.containsInDiskCache(url);
+    }
+
+    private void onFinished(ImageLoadInfo finished) {
+        synchronized (this) {
+            if (!mRunning.remove(finished)) {
+                return;
+            }
+            final ImageLoadFlight flight = finished.getFlight();
+            if (null != flight) {
+                mLoadedBytes += flight.getLoadedBytes();
+            }
+        }
+        dispatchNext();
+    }
+
+    /**
+     * The load was dropped from a full stage queue, called inside {@link #dispatchNext()} when the queue was full on
+     * submit. The url goes back to the front and the group waits, dispatching right away would only be dropped again.
+     */
+    private void onDiscarded(ImageLoadInfo discarded, String url) {
+        synchronized (this) {
+            if (!mRunning.remove(discarded)) {
+                return;
+            }
+            mUrls.add(mNext, url);
+            if (mRetryPending) {
+                return;
+            }
+            mRetryPending = true;
+        }
+        Log.d(TAG, "prefetch dropped from a full queue, retry in " + RETRY_DELAY_MS + "ms: " + url);
+        RETRY_HANDLER.postDelayed(mRetry, RETRY_DELAY_MS);
+    }
+
+    private class PrefetchCallback implements IImageLoadCallback {
+
+        private final String  mUrl;
+
+        private ImageLoadInfo mInfo;
+
+        PrefetchCallback(String url){
+            mUrl = url;
+        }
+
+        @Override
+        public void onLoadingStarted(Object data, View view) {
+        }
+
+        @Override
+        public void onLoadingFailed(Object data, View view, String reason) {
+            Log.d(TAG, "prefetch failed " + data + ", " + reason);
+            onFinished(mInfo);
+        }
+
+        @Override
+        public void onLoadingComplete(Object data, View view, Bitmap loadedBitmap) {
+            onFinished(mInfo);
+        }
+
+        /** A load which was not cancelled itself was dropped from a full stage queue */
+        @Override
+        public void onLoadingCancelled(Object data, View view) {
+            if (mInfo.isCancelled()) {
+                onFinished(mInfo);
+            } else {
+                onDiscarded(mInfo, mUrl);
+            }
+        }
+
+        @Override
+        public void publishProgress(int totalSize, int progress) {
+        }
+    }
+}
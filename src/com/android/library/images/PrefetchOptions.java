@@ -0,0 +1,70 @@
+package com.android.library.images;
+
+/**
+ * Budgets of a {@link ImageLoader#prefetch} call.
+ */
+public class PrefetchOptions {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 2;
+
+    /** Number of prefetch loads of the group running at the same time */
+    public final int        mMaxConcurrency;
+
+    /** No further url is started once the group downloaded this many bytes */
+    public final long       mMaxBytes;
+
+    /** Decode into the memory cache too, otherwise only the disk cache is filled */
+    public final boolean    mWarmMemoryCache;
+
+    public final int        mTargetWidth;
+
+    public final int        mTargetHeight;
+
+    public PrefetchOptions(Builder builder){
+        mMaxConcurrency = builder.mMaxConcurrency;
+        mMaxBytes = builder.mMaxBytes;
+        mWarmMemoryCache = builder.mWarmMemoryCache;
+        mTargetWidth = builder.mTargetWidth;
+        mTargetHeight = builder.mTargetHeight;
+    }
+
+    public static class Builder {
+
+        private int     mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+        private long    mMaxBytes       = Long.MAX_VALUE;
+
+        private boolean mWarmMemoryCache;
+
+        private int     mTargetWidth;
+
+        private int     mTargetHeight;
+
+        public Builder setMaxConcurrency(int maxConcurrency) {
+            if (maxConcurrency < 1) {
+                throw new IllegalArgumentException("maxConcurrency must be positive");
+            }
+            mMaxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public Builder setMaxBytes(long maxBytes) {
+            mMaxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Decodes the prefetched images at the given size into the memory cache.
+         */
+        public Builder setWarmMemoryCache(int targetWidth, int targetHeight) {
+            mWarmMemoryCache = true;
+            mTargetWidth = targetWidth;
+            mTargetHeight = targetHeight;
+            return this;
+        }
+
+        public PrefetchOptions build() {
+            return new PrefetchOptions(this);
+        }
+    }
+}
@@ -16,50 +16,53 @@ public abstract class AwareView implements ImageAware {
 
 	protected WeakReference<View> mRefView;
 
+	/** Kept from construction, so the id stays the same after the view was collected */
+	private final int mId;
+
 	public AwareView(View view ) {
 		mRefView = new WeakReference<View>(view);
+		mId = view == null ? super.hashCode() : view.hashCode();
 	}
 
+	/**
+	 * @return the laid out width, else the width of the layout params; 0 if the width is not known yet, e.g. for
+	 *         match_parent before layout or wrap_content
+	 */
 	@Override
 	public int getWidth() {
-		if (null != mRefView && null != mRefView.get()) {
-
-			final View view =mRefView.get();
-
-			ViewGroup.LayoutParams params = view.getLayoutParams();
-
-			int width = 0;
-
-			if (null != params
-					&& params.width != ViewGroup.LayoutParams.WRAP_CONTENT) {
-				width = view.getWidth();// Get actual image width
-			}
-			if (width == 0 && null != params) {
-				width = params.width;// Get layout width parameter
-			}
+		final View view = mRefView.get();
+		if (null == view) {
+			return 0;
+		}
+		final ViewGroup.LayoutParams params = view.getLayoutParams();
+		int width = 0;
+		if (null != params && params.width != ViewGroup.LayoutParams.WRAP_CONTENT) {
+			width = view.getWidth();// Get actual image width
 		}
-		return 0;
+		if (width <= 0 && null != params) {
+			width = params.width;// Get layout width parameter
+		}
+		return Math.max(0, width);
 	}
 
+	/**
+	 * @see #getWidth()
+	 */
 	@Override
 	public int getHeight() {
-		if (null != mRefView && null != mRefView.get()) {
-
-			final View view = mRefView.get();
-
-			ViewGroup.LayoutParams params = view.getLayoutParams();
-
-			int height = 0;
-
-			if (null != params
-					&& params.width != ViewGroup.LayoutParams.WRAP_CONTENT) {
-				height = view.getHeight();// Get actual image height
-			}
-			if (height == 0 && null != params) {
-				height = params.height;// Get layout height parameter
-			}
+		final View view = mRefView.get();
+		if (null == view) {
+			return 0;
 		}
-		return 0;
+		final ViewGroup.LayoutParams params = view.getLayoutParams();
+		int height = 0;
+		if (null != params && params.height != ViewGroup.LayoutParams.WRAP_CONTENT) {
+			height = view.getHeight();// Get actual image height
+		}
+		if (height <= 0 && null != params) {
+			height = params.height;// Get layout height parameter
+		}
+		return Math.max(0, height);
 	}
 
 	@Override
@@ -74,9 +77,28 @@ public abstract class AwareView implements ImageAware {
 
 	@Override
 	public int getId() {
-        View view = mRefView.get();
-        return view == null ? super.hashCode() : view.hashCode();
-    }
+		return mId;
+	}
+
+	/**
+	 * Wrappers of the same view are equal, so they can be used as map keys without boxing their id.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof AwareView)) {
+			return false;
+		}
+		final View view = mRefView.get();
+		return view != null && view == ((AwareView) o).mRefView.get();
+	}
+
+	@Override
+	public int hashCode() {
+		return mId;
+	}
 
 	@Override
 	public boolean setImageDrawable(final Drawable drawable) {
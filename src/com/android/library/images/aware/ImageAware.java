@@ -4,6 +4,10 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.view.View;
 
+/**
+ * Target of a request. Requests are bound to their target through equals and hashCode, implementations wrapping the
+ * same view must be equal.
+ */
 public interface ImageAware {
     
     int getWidth();
@@ -11,7 +11,12 @@ import android.widget.ImageView;
 
 public class ImageWrappedView extends AwareView {
 
-    private static final String TAG = "ImageWrappedView";
+    private static final String TAG              = "ImageWrappedView";
+
+    /** Looked up once, reflection is too slow for every size query */
+    private static final Field  MAX_WIDTH_FIELD  = findImageViewField("mMaxWidth");
+
+    private static final Field  MAX_HEIGHT_FIELD = findImageViewField("mMaxHeight");
 
     public ImageWrappedView(ImageView imageView){
         super(imageView);
@@ -23,7 +28,7 @@ public class ImageWrappedView extends AwareView {
         if (width <= 0) {
             ImageView imageView = (ImageView)mRefView.get();
             if (imageView != null) {
-                width = getImageViewFieldValue(imageView, "mMaxWidth"); // Check
+                width = getImageViewFieldValue(imageView, MAX_WIDTH_FIELD); // Check
                                                                         // maxWidth
                                                                         // parameter
             }
@@ -37,7 +42,7 @@ public class ImageWrappedView extends AwareView {
         if (height <= 0) {
             ImageView imageView = (ImageView)mRefView.get();
             if (imageView != null) {
-                height = getImageViewFieldValue(imageView, "mMaxHeight"); // Check
+                height = getImageViewFieldValue(imageView, MAX_HEIGHT_FIELD); // Check
                                                                           // maxHeight
                                                                           // parameter
             }
@@ -50,12 +55,24 @@ public class ImageWrappedView extends AwareView {
         return (ImageView)super.getWrappedView();
     }
 
-    private static int getImageViewFieldValue(Object object, String fieldName) {
-        int value = 0;
+    private static Field findImageViewField(String fieldName) {
         try {
             Field field = ImageView.class.getDeclaredField(fieldName);
             field.setAccessible(true);
-            int fieldValue = (Integer)field.get(object);
+            return field;
+        } catch (Exception e) {
+            Log.e(TAG, "findImageViewField " + fieldName + " - " + e);
+            return null;
+        }
+    }
+
+    private static int getImageViewFieldValue(Object object, Field field) {
+        int value = 0;
+        if (null == field) {
+            return value;
+        }
+        try {
+            int fieldValue = field.getInt(object);
             if (fieldValue > 0 && fieldValue < Integer.MAX_VALUE) {
                 value = fieldValue;
             }
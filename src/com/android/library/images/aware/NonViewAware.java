@@ -0,0 +1,56 @@
+package com.android.library.images.aware;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+
+/**
+ * ImageAware without a view, used for requests which only need the image loaded at a given size (prefetching). It is
+ * never collected and never reused, the request stays actual until it is cancelled.
+ */
+public class NonViewAware implements ImageAware {
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    public NonViewAware(int width, int height){
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public View getWrappedView() {
+        return null;
+    }
+
+    @Override
+    public boolean isCollected() {
+        return false;
+    }
+
+    @Override
+    public int getId() {
+        return super.hashCode();
+    }
+
+    @Override
+    public boolean setImageDrawable(Drawable drawable) {
+        return false;
+    }
+
+    @Override
+    public boolean setImageBitmap(Bitmap bitmap) {
+        return false;
+    }
+}
@@ -0,0 +1,16 @@
+package com.android.library.inf;
+
+import java.net.HttpURLConnection;
+
+public interface IRequestCustomizer {
+
+    /**
+     * Called on a network thread before the request of an image is sent, e.g. to add headers or sign the request. The
+     * default headers and client hints are already set.
+     *
+     * @param url url of the request, a mirror of the requested url for hedged downloads
+     * @param targetWidth width of the views waiting for the image in pixels, 0 if unknown
+     * @param targetHeight height of the views waiting for the image in pixels, 0 if unknown
+     */
+    void customizeRequest(HttpURLConnection connection, String url, int targetWidth, int targetHeight);
+}
@@ -0,0 +1,26 @@
+package com.android.library.inf;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+public interface IUriLoader {
+
+    /**
+     * @return <b>true</b> if the loader reads the uri; uris no loader reads are downloaded over HTTP
+     */
+    boolean canLoad(String uri);
+
+    /**
+     * Decodes the image where it is, sampled down to about the requested size. Called on a decode thread; the image is
+     * kept in the memory cache only, never copied into the disk cache.
+     *
+     * @param options options to decode with, a cancelled request aborts the decode through
+     *            {@link BitmapFactory.Options#requestCancelDecode()}
+     * @return the bitmap, null if the image can't be decoded
+     */
+    Bitmap decode(Context context, String uri, int reqWidth, int reqHeight,
+                  BitmapFactory.Options options) throws IOException;
+}
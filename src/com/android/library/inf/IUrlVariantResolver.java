@@ -0,0 +1,16 @@
+package com.android.library.inf;
+
+public interface IUrlVariantResolver {
+
+    /**
+     * Picks the variant of an image to fetch, e.g. by adding width and quality parameters of the CDN to the url. The
+     * variant is cached under its own url. Called for every request which misses the memory cache, it must be cheap.
+     *
+     * @param url requested url
+     * @param width width the image is shown at in pixels, rounded up to a few buckets so variants are shared
+     * @param height height the image is shown at in pixels, bucketed like the width
+     * @param connectionType ConnectivityManager TYPE_ constant of the active network, -1 if there is none
+     * @return url to fetch; url itself, or null, to fetch the requested url
+     */
+    String resolveVariant(String url, int width, int height, int connectionType);
+}
@@ -0,0 +1,51 @@
+package com.android.library.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of equally sized byte buffers for stream copies, so every download doesn't allocate its own buffers. At most a
+ * few buffers are kept, the rest is left to the garbage collector.
+ */
+public class ByteArrayPool {
+
+    public static final int            BUFFER_SIZE = 16 * 1024;
+
+    private static final int           MAX_POOLED  = 8;
+
+    private static final ByteArrayPool sInstance   = new ByteArrayPool(BUFFER_SIZE, MAX_POOLED);
+
+    private final int                  mBufferSize;
+
+    private final int                  mMaxPooled;
+
+    private final List<byte[]>         mBuffers    = new ArrayList<byte[]>();
+
+    public ByteArrayPool(int bufferSize, int maxPooled){
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    /** @return the shared pool of {@link #BUFFER_SIZE} buffers */
+    public static ByteArrayPool get() {
+        return sInstance;
+    }
+
+    public synchronized byte[] acquire() {
+        final int size = mBuffers.size();
+        if (size == 0) {
+            return new byte[mBufferSize];
+        }
+        return mBuffers.remove(size - 1);
+    }
+
+    /**
+     * Returns a buffer from {@link #acquire()}, it must not be used afterwards.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (null == buffer || buffer.length != mBufferSize || mBuffers.size() >= mMaxPooled) {
+            return;
+        }
+        mBuffers.add(buffer);
+    }
+}
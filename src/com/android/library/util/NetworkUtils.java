@@ -24,4 +24,22 @@ public class NetworkUtils {
         }
         return true;
     }
+
+    /**
+     * @return ConnectivityManager TYPE_ constant of the active network, -1 if there is none or the app may not read
+     *         the network state
+     */
+    public static int getConnectionType(Context context) {
+        try {
+            final ConnectivityManager cm = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            final NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+            if (networkInfo == null || !networkInfo.isConnected()) {
+                return -1;
+            }
+            return networkInfo.getType();
+        } catch (SecurityException e) {
+            Log.e("NetworkUtils", "getConnectionType - " + e);
+            return -1;
+        }
+    }
 }
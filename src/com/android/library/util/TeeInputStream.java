@@ -0,0 +1,125 @@
+package com.android.library.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes every byte read from the stream to a second stream as well, e.g. a download is decoded and written to the
+ * disk cache in one pass. Skipped bytes are read and written too, so the branch always receives the whole stream.
+ * <p>
+ * Readers like BitmapFactory swallow IOExceptions, the first failure is kept and can be checked with
+ * {@link #checkException()} afterwards.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream mBranch;
+
+    private long               mCount;
+
+    private IOException        mException;
+
+    public TeeInputStream(InputStream in, OutputStream branch){
+        super(in);
+        mBranch = branch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            final int b = in.read();
+            if (b != -1) {
+                mBranch.write(b);
+                mCount++;
+                onRead(mCount);
+            }
+            return b;
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            final int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                mBranch.write(buffer, offset, n);
+                mCount += n;
+                onRead(mCount);
+            }
+            return n;
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        final byte[] buffer = new byte[(int)Math.min(byteCount, 4096)];
+        long skipped = 0;
+        while (skipped < byteCount) {
+            final int n = read(buffer, 0, (int)Math.min(byteCount - skipped, buffer.length));
+            if (n == -1) {
+                break;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Reads the rest of the stream, so the branch receives it too.
+     *
+     * @return bytes read from the stream in total
+     */
+    public long drain(byte[] buffer) throws IOException {
+        while (read(buffer, 0, buffer.length) != -1) {
+        }
+        return mCount;
+    }
+
+    /** @return bytes read from the stream so far */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @throws IOException the first failure of reading or writing, if any
+     */
+    public void checkException() throws IOException {
+        if (null != mException) {
+            throw mException;
+        }
+    }
+
+    /**
+     * Called after bytes were read and written to the branch. Throwing aborts the read.
+     *
+     * @param count bytes read so far
+     */
+    protected void onRead(long count) throws IOException {
+    }
+
+    private IOException fail(IOException e) {
+        if (null == mException) {
+            mException = e;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,317 @@
+package com.android.library.images;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the {@link AdaptiveConcurrencyLimiter} against a local HTTP stand-in with configurable latency, bandwidth and
+ * server capacity. Plain Java, no device needed:
+ *
+ * <pre>
+ * javac -d out src/com/android/library/images/AdaptiveConcurrencyLimiter.java \
+ *       tests/src/com/android/library/images/AdaptiveConcurrencyHarness.java
+ * java -cp out com.android.library.images.AdaptiveConcurrencyHarness [latencyMs] [kilobytesPerSecond] [imageKb]
+ * </pre>
+ *
+ * The limit starts cut to {@link #START_LIMIT}. The first phase serves with a capacity above the pool size, the limit
+ * should grow to the maximum. The second serves {@link #CONGESTED_CAPACITY} requests at a time, the others queue in
+ * the server; the limit should be cut and settle near that capacity, at most as many as fit in the latency tolerance.
+ * The pool is resized by {@link AdaptiveConcurrencyLimiter#setPoolSize} like the network pool of the worker, and
+ * must follow the limit: no download may start while the pool already runs as many as the limit, downloads started
+ * before a cut only finish.
+ */
+public class AdaptiveConcurrencyHarness {
+
+    static final int  MAX_THREADS     = 12;
+
+    static final int  START_LIMIT     = 2;
+
+    static final int  CONGESTED_CAPACITY = 2;
+
+    static final long PHASE_MILLIS    = 8000;
+
+    public static void main(String[] args) throws Exception {
+        final long latency = args.length > 0 ? Long.parseLong(args[0]) : 50;
+        final int bandwidth = (args.length > 1 ? Integer.parseInt(args[1]) : 4096) * 1024;
+        final int imageSize = (args.length > 2 ? Integer.parseInt(args[2]) : 16) * 1024;
+
+        final StandIn server = new StandIn(latency, bandwidth, imageSize, 64);
+        server.start();
+        final String url = "http://127.0.0.1:" + server.getPort() + "/image";
+
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, MAX_THREADS, START_LIMIT);
+        // created like the network pool of ImageLoaderWorker, then sized to the limit
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                                                               new LinkedBlockingQueue<Runnable>());
+        AdaptiveConcurrencyLimiter.setPoolSize(pool, limiter.getLimit());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger excess = new AtomicInteger();
+        boolean ok = true;
+
+        System.out.println("phase 1: capacity 64, latency " + latency + "ms, limit " + limiter.getLimit());
+        runPhase(pool, limiter, url, running, excess);
+        final int uncongested = limiter.getLimit();
+        System.out.println("limit " + uncongested + ", pool " + pool.getMaximumPoolSize());
+        ok &= check("limit grew from " + START_LIMIT + " to the maximum", uncongested == MAX_THREADS);
+        ok &= check("pool follows the limit", pool.getMaximumPoolSize() == uncongested
+                                               && pool.getCorePoolSize() == uncongested);
+
+        server.setCapacity(CONGESTED_CAPACITY);
+        System.out.println("phase 2: capacity " + CONGESTED_CAPACITY);
+        final double settled = runPhase(pool, limiter, url, running, excess);
+        final int congested = limiter.getLimit();
+        System.out.println("limit " + congested + ", pool " + pool.getMaximumPoolSize() + ", second half average "
+                           + settled);
+        // a request queues behind the others for their latency each, the limit is cut once that exceeds the tolerance
+        final double tolerated = CONGESTED_CAPACITY * (AdaptiveConcurrencyLimiter.TOLERANCE
+                                                       + AdaptiveConcurrencyLimiter.LATENCY_SLACK_MS / (double)latency);
+        ok &= check("limit settled near the capacity", settled >= CONGESTED_CAPACITY && settled <= tolerated + 1);
+        ok &= check("pool follows the limit", pool.getMaximumPoolSize() == congested
+                                               && pool.getCorePoolSize() == congested);
+        System.out.println("downloads started above the limit: " + excess.get());
+        ok &= check("no download started above the limit", excess.get() <= 1);
+
+        pool.shutdownNow();
+        server.stop();
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean check(String name, boolean passed) {
+        System.out.println((passed ? "  ok     " : "  FAILED ") + name);
+        return passed;
+    }
+
+    /**
+     * Keeps the pool's queue filled for a phase.
+     *
+     * @param excess highest count of downloads a download started beside, above the limit at its start
+     * @return average limit over the second half of the phase
+     */
+    private static double runPhase(final ThreadPoolExecutor pool, final AdaptiveConcurrencyLimiter limiter,
+                                   final String url, final AtomicInteger running, final AtomicInteger excess)
+            throws InterruptedException {
+        final long end = System.currentTimeMillis() + PHASE_MILLIS;
+        long lastReport = 0;
+        long limitSum = 0;
+        int limitSamples = 0;
+        while (System.currentTimeMillis() < end) {
+            if (System.currentTimeMillis() - lastReport >= 1000) {
+                lastReport = System.currentTimeMillis();
+                System.out.println("  limit " + limiter.getLimit() + ", running " + running.get());
+            }
+            if (end - System.currentTimeMillis() < PHASE_MILLIS / 2) {
+                limitSum += limiter.getLimit();
+                limitSamples++;
+            }
+            while (pool.getQueue().size() < MAX_THREADS * 2) {
+                pool.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final int over = running.incrementAndGet() - limiter.getLimit();
+                        int max;
+                        while (over > (max = excess.get()) && !excess.compareAndSet(max, over)) {
+                        }
+                        try {
+                            final long latency = download(url);
+                            if (latency >= 0) {
+                                apply(pool, limiter.onSample("127.0.0.1", latency, System.currentTimeMillis()));
+                            } else {
+                                apply(pool, limiter.onTimeout(System.currentTimeMillis()));
+                            }
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                });
+            }
+            Thread.sleep(20);
+        }
+        return limitSamples > 0 ? (double)limitSum / limitSamples : limiter.getLimit();
+    }
+
+    /** Like ImageLoaderWorker.applyNetworkLimit, the pool is only resized when the limit changed */
+    static void apply(ThreadPoolExecutor executor, int limit) {
+        if (executor.getMaximumPoolSize() != limit) {
+            AdaptiveConcurrencyLimiter.setPoolSize(executor, limit);
+        }
+    }
+
+    /**
+     * @return time to first byte in milliseconds, timed from the connection being up like ImageLoadeRunnable; -1 on
+     *         a timeout or error
+     */
+    static long download(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection)new URL(url).openConnection();
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(5000);
+            connection.connect();
+            final long requested = System.currentTimeMillis();
+            final InputStream in = connection.getInputStream();
+            final long latency = System.currentTimeMillis() - requested;
+            final byte[] buffer = new byte[16 * 1024];
+            while (in.read(buffer) != -1) {
+            }
+            in.close();
+            return latency;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (null != connection) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * HTTP server answering every request with an image of a fixed size. A request waits for one of the capacity
+     * slots, then for the latency; the bodies of all responses share the bandwidth.
+     */
+    static class StandIn implements Runnable {
+
+        private final long     mLatency;
+
+        private final int      mBandwidth;
+
+        private final byte[]   mImage;
+
+        private final Semaphore mSlots = new Semaphore(Integer.MAX_VALUE, true);
+
+        private int            mCapacity = Integer.MAX_VALUE;
+
+        /** Time the shared link is free again, guarded by mLinkLock */
+        private long           mLinkFree;
+
+        private final Object   mLinkLock = new Object();
+
+        /** Requests read and not yet answered, and the most there were at once */
+        private final AtomicInteger mServing = new AtomicInteger();
+
+        private final AtomicInteger mPeak   = new AtomicInteger();
+
+        private ServerSocket   mServerSocket;
+
+        StandIn(long latency, int bandwidth, int imageSize, int capacity){
+            mLatency = latency;
+            mBandwidth = bandwidth;
+            mImage = new byte[imageSize];
+            setCapacity(capacity);
+        }
+
+        synchronized void setCapacity(int capacity) {
+            if (capacity < mCapacity) {
+                mSlots.acquireUninterruptibly(mCapacity - capacity);
+            } else {
+                mSlots.release(capacity - mCapacity);
+            }
+            mCapacity = capacity;
+        }
+
+        void start() throws IOException {
+            mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "stand-in");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        /**
+         * @return the most requests the stand-in was serving or queueing at once
+         */
+        int getPeak() {
+            return mPeak.get();
+        }
+
+        void stop() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    final Thread thread = new Thread(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                final InputStream in = socket.getInputStream();
+                // the request ends with an empty line
+                int matched = 0;
+                int b;
+                while (matched < 4 && (b = in.read()) != -1) {
+                    matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+                }
+                final int serving = mServing.incrementAndGet();
+                int peak;
+                while (serving > (peak = mPeak.get()) && !mPeak.compareAndSet(peak, serving)) {
+                }
+                try {
+                    mSlots.acquire();
+                    try {
+                        Thread.sleep(mLatency);
+                        final OutputStream out = socket.getOutputStream();
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Type: image/jpeg\r\nContent-Length: " + mImage.length
+                                   + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                        out.flush();
+                        Thread.sleep(reserveLink(mImage.length));
+                        out.write(mImage);
+                        out.flush();
+                    } finally {
+                        mSlots.release();
+                    }
+                } finally {
+                    mServing.decrementAndGet();
+                }
+            } catch (IOException e) {
+            } catch (InterruptedException e) {
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /**
+         * @return milliseconds until the bytes went through the shared link
+         */
+        private long reserveLink(int bytes) {
+            synchronized (mLinkLock) {
+                final long now = System.currentTimeMillis();
+                mLinkFree = Math.max(now, mLinkFree) + bytes * 1000L / mBandwidth;
+                return mLinkFree - now;
+            }
+        }
+    }
+}
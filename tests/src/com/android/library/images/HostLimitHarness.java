@@ -0,0 +1,186 @@
+package com.android.library.images;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the per host connection slots of {@link HostSlots} against two local HTTP stand-ins on one address, told apart
+ * only by their ports. Plain Java, no device needed:
+ *
+ * <pre>
+ * javac -d out src/com/android/library/images/HostSlots.java \
+ *       tests/src/com/android/library/images/AdaptiveConcurrencyHarness.java \
+ *       tests/src/com/android/library/images/HostLimitHarness.java
+ * java -cp out com.android.library.images.HostLimitHarness
+ * </pre>
+ *
+ * The line of a host is checked first: a freed slot goes to the task which waited longest, a task which waited before
+ * goes ahead of new ones, cancelled tasks are skipped and removed ones never get a slot. Then downloads from both ports
+ * run like the network stage does them: each port is a host of its own with its own limit, both are served at once,
+ * and every task which waited in a line is handed a slot.
+ */
+public class HostLimitHarness {
+
+    static final int MAX_PER_HOST   = 2;
+
+    static final int TASKS_PER_HOST = 12;
+
+    static final int THREADS        = 16;
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = checkLine();
+        ok &= checkPorts();
+        System.out.println(ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean checkLine() {
+        System.out.println("line of a host");
+        final Set<String> cancelled = new HashSet<String>();
+        final HostSlots<String> slots = new HostSlots<String>(MAX_PER_HOST) {
+
+            @Override
+            protected boolean isCancelled(String task) {
+                return cancelled.contains(task);
+            }
+        };
+        final String host = HostSlots.hostOf("http://127.0.0.1:8001/a.jpg");
+        final String other = HostSlots.hostOf("http://127.0.0.1:8002/a.jpg");
+        boolean ok = check("ports are separate hosts", !host.equals(other));
+
+        ok &= check("slots up to the limit", slots.tryAcquire(host, "a", false) && slots.tryAcquire(host, "b", false));
+        ok &= check("tasks beyond it wait", !slots.tryAcquire(host, "c", false) && !slots.tryAcquire(host, "d", false)
+                                            && !slots.tryAcquire(host, "e", false)
+                                            && !slots.tryAcquire(host, "f", false));
+        ok &= check("a mirror doesn't get a slot of a full host", !slots.tryAcquire(host));
+        ok &= check("the other port has slots of its own", slots.tryAcquire(other, "x", false));
+
+        cancelled.add("d");
+        slots.remove("e");
+        ok &= check("the freed slot goes to the first waiting", "c".equals(slots.release(host)));
+        ok &= check("which takes it", slots.tryAcquire(host, "c", true));
+        ok &= check("cancelled and removed tasks are skipped", "f".equals(slots.release(host)));
+        ok &= check("no more waiting", slots.waiting(host) == 0);
+
+        // a new task took the slot before the handed one ran, the handed one goes ahead of the next new one
+        ok &= check("a new task takes a free slot", slots.tryAcquire(host, "g", false));
+        ok &= check("the resumed task waits again", !slots.tryAcquire(host, "f", true));
+        ok &= check("behind it a new one", !slots.tryAcquire(host, "h", false));
+        ok &= check("the resumed task goes first", "f".equals(slots.release(host)));
+        return ok;
+    }
+
+    private static boolean checkPorts() throws Exception {
+        System.out.println("two ports of one address");
+        final AdaptiveConcurrencyHarness.StandIn first = new AdaptiveConcurrencyHarness.StandIn(200, 4096 * 1024,
+                                                                                                 16 * 1024, 64);
+        final AdaptiveConcurrencyHarness.StandIn second = new AdaptiveConcurrencyHarness.StandIn(200, 4096 * 1024,
+                                                                                                  16 * 1024, 64);
+        first.start();
+        second.start();
+
+        final HostSlots<Download> slots = new HostSlots<Download>(MAX_PER_HOST);
+        final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch done = new CountDownLatch(2 * TASKS_PER_HOST);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger waited = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < TASKS_PER_HOST; i++) {
+            for (AdaptiveConcurrencyHarness.StandIn server : new AdaptiveConcurrencyHarness.StandIn[] { first, second }) {
+                pool.execute(new Download("http://127.0.0.1:" + server.getPort() + "/image", slots, pool, done,
+                                          running, peak, waited, failed));
+            }
+        }
+        final boolean finished = done.await(30, TimeUnit.SECONDS);
+        pool.shutdownNow();
+        first.stop();
+        second.stop();
+
+        System.out.println("  peaks " + first.getPeak() + " and " + second.getPeak() + ", together " + peak.get()
+                           + ", " + waited.get() + " waited");
+        boolean ok = check("every task got a slot", finished && failed.get() == 0);
+        ok &= check("each port at most the limit", first.getPeak() <= MAX_PER_HOST
+                                                   && second.getPeak() <= MAX_PER_HOST);
+        ok &= check("both ports served at once", peak.get() == 2 * MAX_PER_HOST);
+        ok &= check("tasks waited in the lines", waited.get() > 0);
+        return ok;
+    }
+
+    private static boolean check(String name, boolean passed) {
+        System.out.println((passed ? "  ok     " : "  FAILED ") + name);
+        return passed;
+    }
+
+    /**
+     * Download in the way of the network stage: a task finding its host full gives its thread up, the task finishing
+     * a download from the host runs the one it is handed.
+     */
+    static class Download implements Runnable {
+
+        private final String              mUrl;
+
+        private final String              mHost;
+
+        private final HostSlots<Download> mSlots;
+
+        private final ExecutorService     mPool;
+
+        private final CountDownLatch      mDone;
+
+        private final AtomicInteger       mRunning;
+
+        private final AtomicInteger       mPeak;
+
+        private final AtomicInteger       mWaited;
+
+        private final AtomicInteger       mFailed;
+
+        private boolean                   mWaitedForHost;
+
+        Download(String url, HostSlots<Download> slots, ExecutorService pool, CountDownLatch done,
+                 AtomicInteger running, AtomicInteger peak, AtomicInteger waited, AtomicInteger failed){
+            mUrl = url;
+            mHost = HostSlots.hostOf(url);
+            mSlots = slots;
+            mPool = pool;
+            mDone = done;
+            mRunning = running;
+            mPeak = peak;
+            mWaited = waited;
+            mFailed = failed;
+        }
+
+        @Override
+        public void run() {
+            if (!mSlots.tryAcquire(mHost, this, mWaitedForHost)) {
+                if (!mWaitedForHost) {
+                    mWaited.incrementAndGet();
+                }
+                mWaitedForHost = true;
+                return;
+            }
+            try {
+                final int running = mRunning.incrementAndGet();
+                int max;
+                while (running > (max = mPeak.get()) && !mPeak.compareAndSet(max, running)) {
+                }
+                if (AdaptiveConcurrencyHarness.download(mUrl) < 0) {
+                    mFailed.incrementAndGet();
+                }
+            } finally {
+                mRunning.decrementAndGet();
+                final Download next = mSlots.release(mHost);
+                if (null != next) {
+                    mPool.execute(next);
+                }
+                mDone.countDown();
+            }
+        }
+    }
+}